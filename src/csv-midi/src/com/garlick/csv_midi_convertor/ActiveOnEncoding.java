@@ -1,7 +1,6 @@
 package com.garlick.csv_midi_convertor;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiEvent;
 import javax.sound.midi.ShortMessage;
@@ -13,6 +12,47 @@ import javax.sound.midi.Track;
  */
 public class ActiveOnEncoding {
     
+    //Changes to a key at a time step
+    public static final int KEY_OFF = 1;
+    public static final int KEY_ON = 2;
+    
+    //Value above which a bit of the song matrix is set
+    public static final float DEFAULT_THRESHOLD = 0.5f;
+    
+    /**
+     * Decide whether a key should be turned off and/or on at a time step
+     * 
+     * @param keyActive Whether the key active bit is set
+     * @param keyStart Whether the key start bit is set
+     * @param wasActive Whether the key is currently sounding
+     * @return KEY_OFF and/or KEY_ON flags
+     */
+    public static int getKeyChange(boolean keyActive, boolean keyStart, boolean wasActive) {
+        int change = 0;
+        
+        if (!keyActive && !keyStart) {
+            //Both bit off (00)
+            if (wasActive) {
+                change |= KEY_OFF;
+            }
+           
+        } else if (keyActive && !keyStart) {
+            //Key Active But No Start (10)
+            if (!wasActive) {
+                change |= KEY_ON;
+            }
+            
+        } else if (keyStart) {
+            //Key not active, but is start (01) ===> (Techically an error but is same as new key starting)
+            //Or key is started (11)
+            if (wasActive) {
+                change |= KEY_OFF;
+            }
+            change |= KEY_ON;
+        }
+        return change;
+    }
+    
     /**
      * Refer to paper for how this encoding / decoding works
      * 
@@ -25,57 +65,60 @@ public class ActiveOnEncoding {
      * @throws InvalidMidiDataException 
      */
     public static int decode(Track t, ArrayList<ArrayList<Float>> notes, int minimumKey, int velocity, int quantisation) throws InvalidMidiDataException {
+        float[][] matrix = new float[notes.size()][];
+        for (int i = 0; i < notes.size(); i++) {
+            matrix[i] = new float[notes.get(i).size()];
+            for (int j = 0; j < matrix[i].length; j++) {
+                matrix[i][j] = notes.get(i).get(j);
+            }
+        }
+        return decode(t, matrix, 0, matrix.length, matrix.length > 0 ? matrix[0].length : 0, minimumKey, velocity, quantisation, DEFAULT_THRESHOLD, new boolean[matrix.length / 2]);
+    }
+    
+    /**
+     * Decode a range of rows of a song matrix, using the given array to hold
+     * the keys currently sounding
+     * 
+     * @param t Track to append notes to
+     * @param notes Song matrix to extract from
+     * @param firstRow First row of the track in the song matrix
+     * @param rowCount Rows in the track
+     * @param columns Time steps in the song matrix
+     * @param minimumKey Minimum key to alter notes by
+     * @param velocity default of notes
+     * @param quantisation Quantisation level
+     * @param threshold Value above which a bit is set
+     * @param activeKeys Cleared array of at least rowCount / 2 keys
+     * @return Integer of notes in track
+     * @throws InvalidMidiDataException 
+     */
+    public static int decode(Track t, float[][] notes, int firstRow, int rowCount, int columns, int minimumKey, int velocity, int quantisation, float threshold, boolean[] activeKeys) throws InvalidMidiDataException {
+        ConversionStageEvent event = ConversionStageEvent.start("decode");
         int notesCount = 0;
-        //Refresh HashMap
-        HashSet<Integer> activeKeys = new HashSet<>();
-        
-        for (int i = 0; i < notes.size()/2; i++) {activeKeys.remove(i);}
         
-        for (int seqNo = 0; seqNo < notes.get(0).size(); seqNo++) {
-//            System.out.println("Track: " + trackNo + " Sequence#:" + seqNo);
-            for (int keyPair = 0; keyPair < notes.size(); keyPair = keyPair + 2) {
-                //int seqNo = seqNo;
+        for (int seqNo = 0; seqNo < columns; seqNo++) {
+            for (int keyPair = 0; keyPair + 1 < rowCount; keyPair = keyPair + 2) {
                 int keyNo = (keyPair / 2);     
                 int key = keyNo + minimumKey;
-                boolean keyActive = notes.get(keyPair).get(seqNo) > 0.5;
-                boolean keyStart = notes.get(keyPair + 1).get(seqNo) > 0.5;
+                boolean keyActive = notes[firstRow + keyPair][seqNo] > threshold;
+                boolean keyStart = notes[firstRow + keyPair + 1][seqNo] > threshold;
                 
                 //Decide whether to turn on or off
-                boolean turnKeyOff = false;
-                boolean turnKeyOn = false;
-                
-                if (!keyActive && !keyStart) {
-                    //Both bit off (00)
-                    if (activeKeys.contains(keyNo)) {
-                        turnKeyOff = true;
-                    }
-                   
-                } else if (keyActive && !keyStart) {
-                    //Key Active But No Start (10)
-                    if (!activeKeys.contains(keyNo)) {
-                        turnKeyOn = true;
-                    }
-                    
-                } else if (keyStart) {
-                    //Key not active, but is start (01) ===> (Techically an error but is same as new key starting)
-                    //Or key is started (11)
-                    if (activeKeys.contains(keyNo)) {
-                        turnKeyOff = true;
-                    }
-                    turnKeyOn = true;
-                }
+                int change = getKeyChange(keyActive, keyStart, activeKeys[keyNo]);
+                boolean turnKeyOff = (change & KEY_OFF) != 0;
+                boolean turnKeyOn = (change & KEY_ON) != 0;
                 
                 
-                //Turn Nots on And Off
+                //Turn Nots on And Off, on channel 0 as each track is its own MIDI track
                 if (turnKeyOff) {
-                    activeKeys.remove(keyNo);
+                    activeKeys[keyNo] = false;
                     ShortMessage off = new ShortMessage();
                     off.setMessage(ShortMessage.NOTE_OFF, 0, key, velocity);
                     t.add(new MidiEvent(off,(long) seqNo * quantisation));
                 }
                 if (turnKeyOn) {
                     notesCount++;
-                    activeKeys.add(keyNo);
+                    activeKeys[keyNo] = true;
                     ShortMessage on = new ShortMessage();
                     on.setMessage(ShortMessage.NOTE_ON, 0, key, velocity);
                     t.add(new MidiEvent(on,(long) seqNo * quantisation));
@@ -83,14 +126,17 @@ public class ActiveOnEncoding {
             }
         }
         
-        //Remove any left over notes 
-        for (Integer i : new HashSet<>(activeKeys)) {
-            activeKeys.remove(i);
-            ShortMessage off = new ShortMessage();
-            off.setMessage(ShortMessage.NOTE_OFF, 0, i + minimumKey, velocity);
-            t.add(new MidiEvent(off,(long) notes.get(0).size()));
+        //Remove any left over notes at the end of the last time step
+        for (int i = 0; i < rowCount / 2; i++) {
+            if (activeKeys[i]) {
+                activeKeys[i] = false;
+                ShortMessage off = new ShortMessage();
+                off.setMessage(ShortMessage.NOTE_OFF, 0, i + minimumKey, velocity);
+                t.add(new MidiEvent(off,(long) columns * quantisation));
+            }
         }
         
+        event.finish(rowCount, columns, notesCount, 0);
         return notesCount;
     }
 }
@@ -0,0 +1,232 @@
+package com.garlick.csv_midi_convertor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+
+/**
+ * Decodes a batch of song matrices held in a single NumPy file, such as the
+ * probabilities sampled by a model, into one MIDI file per song. The batch
+ * is a little-endian float32 array of shape [songs, rows, steps] which is
+ * memory-mapped, so no text is parsed, and the songs are decoded in
+ * parallel.
+ *
+ * @author Sam Garlick
+ */
+public class BatchDecoder {
+
+    //NumPy file format
+    private static final byte[] MAGIC = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'};
+    private static final Pattern DESCR = Pattern.compile("'descr'\\s*:\\s*'([^']*)'");
+    private static final Pattern FORTRAN_ORDER = Pattern.compile("'fortran_order'\\s*:\\s*(True|False)");
+    private static final Pattern SHAPE = Pattern.compile("'shape'\\s*:\\s*\\(([^)]*)\\)");
+
+    //Batch layout
+    private final Path batchFile;
+    private final long dataOffset;
+    private final int songCount;
+    private final int rowCount;
+    private final int columnCount;
+
+    /**
+     * Open a batch file, reading the shape of the batch from its header
+     *
+     * @param batchFile Location of the .npy file
+     * @throws IOException
+     */
+    public BatchDecoder(Path batchFile) throws IOException {
+        this.batchFile = batchFile;
+
+        try (RandomAccessFile raf = new RandomAccessFile(batchFile.toFile(), "r")) {
+            byte[] magic = new byte[MAGIC.length];
+            raf.readFully(magic);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) {
+                    throw new IOException(batchFile + " is not a NumPy file");
+                }
+            }
+
+            //Version 1 headers have a 2 byte length, later versions 4 bytes
+            int major = raf.readUnsignedByte();
+            raf.readUnsignedByte();
+            long headerLength;
+            if (major == 1) {
+                headerLength = raf.readUnsignedByte() | (raf.readUnsignedByte() << 8);
+            } else {
+                byte[] length = new byte[4];
+                raf.readFully(length);
+                headerLength = ByteBuffer.wrap(length).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xFFFFFFFFL;
+            }
+            byte[] header = new byte[(int) headerLength];
+            raf.readFully(header);
+            this.dataOffset = raf.getFilePointer();
+
+            String dictionary = new String(header, StandardCharsets.ISO_8859_1);
+            Matcher descr = DESCR.matcher(dictionary);
+            if (!descr.find() || !descr.group(1).equals("<f4")) {
+                throw new IOException(batchFile + " must hold little-endian float32 values");
+            }
+            Matcher fortranOrder = FORTRAN_ORDER.matcher(dictionary);
+            if (fortranOrder.find() && fortranOrder.group(1).equals("True")) {
+                throw new IOException(batchFile + " must be stored in C order");
+            }
+            Matcher shape = SHAPE.matcher(dictionary);
+            if (!shape.find()) {
+                throw new IOException(batchFile + " has no shape");
+            }
+
+            //A single song of [rows, steps] is a batch of one
+            ArrayList<Integer> dimensions = new ArrayList<>();
+            for (String dimension : shape.group(1).split(",")) {
+                if (!dimension.trim().isEmpty()) {
+                    dimensions.add(Integer.parseInt(dimension.trim()));
+                }
+            }
+            if (dimensions.size() == 2) {
+                dimensions.add(0, 1);
+            }
+            if (dimensions.size() != 3) {
+                throw new IOException(batchFile + " has shape (" + shape.group(1) + "), expected (songs, rows, steps)");
+            }
+            this.songCount = dimensions.get(0);
+            this.rowCount = dimensions.get(1);
+            this.columnCount = dimensions.get(2);
+        }
+
+        long expected = this.dataOffset + (long) this.songCount * getSongBytes();
+        if (Files.size(batchFile) < expected) {
+            throw new IOException(batchFile + " is truncated, expected " + expected + " bytes");
+        }
+    }
+
+    /**
+     * Decode every song of the batch in parallel, saving song n as
+     * '[name]_[n].mid' in the output folder
+     *
+     * @param outDir Folder to save MIDI files to
+     * @param trackCount Tracks in each song
+     * @param minimumKey Minimum key bounds
+     * @param velocity Note velocity
+     * @param quantisation Quantisation level for music
+     * @param threshold Value above which a bit of the matrix is set
+     * @param threads Quantity of songs decoded at once
+     * @return Quantity of songs decoded
+     * @throws Exception
+     */
+    public int decode(Path outDir, int trackCount, String minimumKey, int velocity,
+            float quantisation, float threshold, int threads) throws Exception {
+
+        Files.createDirectories(outDir);
+        String name = this.batchFile.getFileName().toString().split("\\.")[0];
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ThreadLocal<ConversionContext> contexts = ThreadLocal.withInitial(ConversionContext::new);
+        AtomicLong decodedSongs = new AtomicLong();
+
+        try (RandomAccessFile raf = new RandomAccessFile(this.batchFile.toFile(), "r");
+             FileChannel channel = raf.getChannel()) {
+            List<Future<?>> songs = new ArrayList<>();
+            for (int songNo = 0; songNo < this.songCount; songNo++) {
+                final int song = songNo;
+                songs.add(executor.submit(() -> {
+                    String output = outDir.resolve(name + "_" + song + ".mid").toString();
+                    decodeSong(channel, song, output, trackCount, minimumKey, velocity, quantisation, threshold, contexts.get());
+                    decodedSongs.incrementAndGet();
+                    return null;
+                }));
+            }
+            for (Future<?> song : songs) {
+                song.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return (int) decodedSongs.get();
+    }
+
+    /**
+     * Copy a single song out of the mapped batch and save it as MIDI
+     *
+     * @param channel Channel of the batch file
+     * @param song Index of the song in the batch
+     * @param outputFile Output midi location
+     * @param trackCount Tracks in each song
+     * @param minimumKey Minimum key bounds
+     * @param velocity Note velocity
+     * @param quantisation Quantisation level for music
+     * @param threshold Value above which a bit of the matrix is set
+     * @param context Buffers of the decoding thread
+     * @throws Exception
+     */
+    private void decodeSong(FileChannel channel, int song, String outputFile, int trackCount,
+            String minimumKey, int velocity, float quantisation, float threshold,
+            ConversionContext context) throws Exception {
+
+        String songName = this.batchFile.getFileName() + "[" + song + "]";
+        ConversionEvent event = ConversionEvent.start(songName);
+
+        //Map only this song, so batches larger than 2GB can be read
+        FloatBuffer values = channel.map(FileChannel.MapMode.READ_ONLY, this.dataOffset + song * getSongBytes(), getSongBytes())
+                .order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        for (int row = 0; row < this.rowCount; row++) {
+            values.get(context.getRow(row, this.columnCount), 0, this.columnCount);
+        }
+        context.rowCount = this.rowCount;
+        context.columnCount = this.columnCount;
+
+        Sequence seq = Convertor.encodeMatrix(songName, trackCount, minimumKey, velocity, quantisation, threshold, context);
+        MidiSystem.write(seq, 1, new File(outputFile));
+
+        if (event.isEnabled()) {
+            event.finish(seq.getTracks().length, ConversionEvent.countNotes(seq), getSongBytes(), new File(outputFile).length());
+        }
+    }
+
+    /**
+     *
+     * @return Bytes of a single song in the batch
+     */
+    private long getSongBytes() {
+        return (long) this.rowCount * this.columnCount * Float.BYTES;
+    }
+
+    /**
+     *
+     * @return Quantity of songs in the batch
+     */
+    public int getSongCount() {
+        return this.songCount;
+    }
+
+    /**
+     *
+     * @return Rows of each song matrix
+     */
+    public int getRowCount() {
+        return this.rowCount;
+    }
+
+    /**
+     *
+     * @return Time steps of each song matrix
+     */
+    public int getColumnCount() {
+        return this.columnCount;
+    }
+}
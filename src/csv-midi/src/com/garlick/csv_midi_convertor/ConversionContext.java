@@ -0,0 +1,58 @@
+package com.garlick.csv_midi_convertor;
+
+import java.util.Arrays;
+
+/**
+ * Buffers reused between conversions by a single worker, so converting a
+ * folder of files does not allocate a new matrix for every file.
+ *
+ * @author Sam Garlick
+ */
+public class ConversionContext {
+
+    //Song matrix loaded from CSV, the rows may be longer than the song
+    float[][] matrix = new float[0][0];
+    int rowCount = 0;
+    int columnCount = 0;
+
+    //Scratch space for reading CSV files
+    final char[] buffer = new char[1 << 16];
+    char[] token = new char[32];
+
+    //Keys currently sounding while decoding a track
+    private boolean[] activeKeys = new boolean[0];
+
+    /**
+     * Get a row of the matrix to fill, growing the matrix if needed
+     *
+     * @param row Index of the row
+     * @param columns Columns needed in the row
+     * @return Row of the matrix
+     */
+    float[] getRow(int row, int columns) {
+        if (row >= matrix.length) {
+            matrix = Arrays.copyOf(matrix, Math.max(row + 1, matrix.length * 2));
+        }
+        if (matrix[row] == null) {
+            matrix[row] = new float[columns];
+        } else if (matrix[row].length < columns) {
+            matrix[row] = Arrays.copyOf(matrix[row], Math.max(columns, matrix[row].length * 2));
+        }
+        return matrix[row];
+    }
+
+    /**
+     * Get a cleared array of active keys
+     *
+     * @param keys Quantity of keys in a track
+     * @return Cleared active keys
+     */
+    boolean[] getActiveKeys(int keys) {
+        if (activeKeys.length < keys) {
+            activeKeys = new boolean[keys];
+        } else {
+            Arrays.fill(activeKeys, 0, keys, false);
+        }
+        return activeKeys;
+    }
+}
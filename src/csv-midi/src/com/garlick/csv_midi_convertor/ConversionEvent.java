@@ -0,0 +1,97 @@
+package com.garlick.csv_midi_convertor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Flight recorder event for converting a single CSV file to MIDI
+ *
+ * @author Sam Garlick
+ */
+@Name("com.garlick.csv_midi.Conversion")
+@Label("File Conversion")
+@Category({"MIDI Conversion", "CSV-MIDI"})
+@Description("Conversion of a CSV song matrix to a MIDI file")
+@StackTrace(false)
+public class ConversionEvent extends Event {
+
+    @Label("Input File")
+    String inputFile;
+
+    @Label("Tracks")
+    int tracks;
+
+    @Label("Notes")
+    @Description("Notes started in the MIDI sequence")
+    long notes;
+
+    @Label("Input Size")
+    @DataAmount
+    long inputBytes;
+
+    @Label("Output Size")
+    @DataAmount
+    long outputBytes;
+
+    /**
+     * Create and begin timing a file conversion
+     *
+     * @param inputFile File being converted
+     * @return Started event
+     */
+    static ConversionEvent start(String inputFile) {
+        ConversionEvent event = new ConversionEvent();
+        event.inputFile = inputFile;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End the conversion and record it if flight recorder is enabled
+     *
+     * @param tracks Tracks in the MIDI sequence
+     * @param notes Notes in the sequence
+     * @param inputBytes Size of the input file
+     * @param outputBytes Size of the output file
+     */
+    void finish(int tracks, long notes, long inputBytes, long outputBytes) {
+        end();
+        if (shouldCommit()) {
+            this.tracks = tracks;
+            this.notes = notes;
+            this.inputBytes = inputBytes;
+            this.outputBytes = outputBytes;
+            commit();
+        }
+    }
+
+    /**
+     * Count the notes started in a sequence, as recorded by conversion events.
+     * Note on messages without a velocity turn notes off, so are not counted
+     *
+     * @param sequence MIDI sequence
+     * @return Quantity of note on messages with a velocity
+     */
+    static long countNotes(Sequence sequence) {
+        long notes = 0;
+        for (Track track : sequence.getTracks()) {
+            for (int i = 0; i < track.size(); i++) {
+                MidiMessage message = track.get(i).getMessage();
+                if (message instanceof ShortMessage && ((ShortMessage) message).getCommand() == ShortMessage.NOTE_ON
+                        && ((ShortMessage) message).getData2() > 0) {
+                    notes++;
+                }
+            }
+        }
+        return notes;
+    }
+}
@@ -0,0 +1,71 @@
+package com.garlick.csv_midi_convertor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for a single stage of converting a CSV file
+ *
+ * @author Sam Garlick
+ */
+@Name("com.garlick.csv_midi.ConversionStage")
+@Label("Conversion Stage")
+@Category({"MIDI Conversion", "CSV-MIDI"})
+@Description("A stage of converting a song matrix to a MIDI sequence")
+@StackTrace(false)
+public class ConversionStageEvent extends Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Rows")
+    int rows;
+
+    @Label("Columns")
+    int columns;
+
+    @Label("Notes")
+    @Description("Notes started in the stage")
+    long notes;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    /**
+     * Create and begin timing a stage
+     *
+     * @param stage Name of the stage
+     * @return Started event
+     */
+    static ConversionStageEvent start(String stage) {
+        ConversionStageEvent event = new ConversionStageEvent();
+        event.stage = stage;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End the stage and record it if flight recorder is enabled
+     *
+     * @param rows Rows in the matrix
+     * @param columns Columns in the matrix
+     * @param notes Notes written to the MIDI sequence
+     * @param bytes Bytes read or written
+     */
+    void finish(int rows, int columns, long notes, long bytes) {
+        end();
+        if (shouldCommit()) {
+            this.rows = rows;
+            this.columns = columns;
+            this.notes = notes;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+}
@@ -1,11 +1,10 @@
 package com.garlick.csv_midi_convertor;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.Sequence;
 import javax.sound.midi.Track;
@@ -29,90 +28,228 @@ public class Convertor {
      * @throws Exception 
      */
     public static Sequence encode(String in, int trackCount, String minimumKey, int velocity, float inQuantisation) throws FileNotFoundException, IOException, InvalidMidiDataException, Exception {
+        return encode(in, trackCount, minimumKey, velocity, inQuantisation, ActiveOnEncoding.DEFAULT_THRESHOLD, new ConversionContext());
+    }
+    
+    /**
+     * Encode CSV file as MIDI, reusing the buffers of the given context
+     * 
+     * @param in File location 
+     * @param trackCount Tracks in matrix
+     * @param minimumKey minimum key
+     * @param velocity default velocity for a note
+     * @param inQuantisation quantisation level
+     * @param threshold Value above which a bit of the matrix is set
+     * @param context Buffers reused between conversions
+     * @return Return MIDI sequence
+     * @throws FileNotFoundException
+     * @throws IOException
+     * @throws InvalidMidiDataException
+     * @throws Exception 
+     */
+    public static Sequence encode(String in, int trackCount, String minimumKey, int velocity, float inQuantisation, float threshold, ConversionContext context) throws FileNotFoundException, IOException, InvalidMidiDataException, Exception {
+        convertFileToMatrix(in, context);
+        return encodeMatrix(new File(in).getName(), trackCount, minimumKey, velocity, inQuantisation, threshold, context);
+    }
+    
+    /**
+     * Encode the matrix held in the given context as MIDI
+     * 
+     * @param name Name of the song, for output to the user
+     * @param trackCount Tracks in matrix
+     * @param minimumKey minimum key
+     * @param velocity default velocity for a note
+     * @param inQuantisation quantisation level
+     * @param threshold Value above which a bit of the matrix is set
+     * @param context Context holding the matrix
+     * @return Return MIDI sequence
+     * @throws InvalidMidiDataException 
+     */
+    static Sequence encodeMatrix(String name, int trackCount, String minimumKey, int velocity, float inQuantisation, float threshold, ConversionContext context) throws InvalidMidiDataException {
         Sequence seq = new Sequence(Sequence.PPQ, 120);
         int minKey = parseKeyString(minimumKey);
         int quantisation = (int) (120 * inQuantisation);
         
-        ArrayList<ArrayList<Float>> songMatrix = convertFileToMatrix(in);
-        
-        int trackSize = songMatrix.size() / trackCount;
-        String notesList = "{";
+        int trackSize = context.rowCount / trackCount;
+        StringBuilder notesList = new StringBuilder("{");
         for (int trackNo = 0; trackNo < trackCount; trackNo++) {
-            if (trackNo > 0){notesList += ", ";}
+            if (trackNo > 0){notesList.append(", ");}
             Track t = seq.createTrack();
-            ArrayList<ArrayList<Float>> keys = getSongMatrixRange(songMatrix, trackNo * trackSize, (trackNo + 1) * trackSize);
-            int noteCount = decodeTrack(t, keys, minKey, velocity, quantisation);
-            notesList += noteCount;
+            int noteCount = ActiveOnEncoding.decode(t, context.matrix, trackNo * trackSize, trackSize, context.columnCount, 
+                    minKey, velocity, quantisation, threshold, context.getActiveKeys(trackSize / 2));
+            notesList.append(noteCount);
         }
-        System.out.println("Converted file: " + new File(in).getName() + "; " + trackCount + " tracks with " + notesList+"} notes.");
+        System.out.println("Converted file: " + name + "; " + trackCount + " tracks with " + notesList+"} notes.");
         return seq;   
     }
     
     /**
-     * Seperate out full song matrix into sub track matrix
-     * 
-     * @param arr Array to extract from
-     * @param s Start level
-     * @param e End level
-     * @return 
-     */
-    private static ArrayList<ArrayList<Float>> getSongMatrixRange(ArrayList<ArrayList<Float>> arr, int s, int e) {
-        ArrayList<ArrayList<Float>> range = new ArrayList<>();
-        for (int i = s; i < e; i++) {
-            range.add(arr.get(i));
-        }
-        return range;
-    }
-    
-    /**
-     * Load CSV file into matrix of floats
+     * Load CSV file into the matrix of the given context. The file is read
+     * through the context's buffer and each value parsed in place, so no
+     * strings are created per value. Lines are read as BufferedReader and
+     * String.split would: empty values at the end of a line are ignored, and
+     * values beyond the length of the first row are not loaded
      * 
      * @param location File location to load from
-     * @return Matrix of floats
+     * @param context Context to load the matrix into
      * @throws FileNotFoundException
      * @throws IOException 
      */
-    private static ArrayList<ArrayList<Float>> convertFileToMatrix(String location) throws FileNotFoundException, IOException {
-        ArrayList<ArrayList<Float>> songMatrix = new ArrayList<>();
+    static void convertFileToMatrix(String location, ConversionContext context) throws FileNotFoundException, IOException {
+        ConversionStageEvent event = ConversionStageEvent.start("convertFileToMatrix");
+        context.rowCount = 0;
+        context.columnCount = 0;
         File f = new File(location);
         if (f.exists()){
-            BufferedReader br = new BufferedReader(new FileReader(f));
-            String line = "";
-            while ((line = br.readLine()) != null) {
-                if (line.length() > 5) {
-                    ArrayList<Float> row = new ArrayList<>();
-                    String[] tokens = line.split(",");
-                    for (String s : tokens) {
-                        s = s.replaceAll(" ", "");
-                        row.add(Float.parseFloat(s));
+            try (FileReader fr = new FileReader(f)) {
+                char[] buffer = context.buffer;
+                int column = 0;
+                int lineLength = 0;
+                int tokenChars = 0;
+                int tokenLength = 0;
+                int emptyValues = 0;
+                NumberFormatException invalidValue = null;
+                boolean afterCarriageReturn = false;
+                int read;
+                boolean endOfFile = false;
+                while (!endOfFile) {
+                    read = fr.read(buffer);
+                    if (read < 0) {
+                        //Treat the end of the file as the end of the last line
+                        endOfFile = true;
+                        buffer[0] = '\n';
+                        read = 1;
+                    }
+                    for (int i = 0; i < read; i++) {
+                        char c = buffer[i];
+                        if (c == '\n' && afterCarriageReturn) {
+                            //Second character of a \r\n line ending
+                            afterCarriageReturn = false;
+                            continue;
+                        }
+                        afterCarriageReturn = c == '\r';
+                        boolean endOfLine = c == '\n' || c == '\r';
+                        
+                        if (c == ',' || (endOfLine && lineLength > 5)) {
+                            //End of a value, errors are kept until the line is known not to be skipped
+                            if (tokenChars == 0) {
+                                emptyValues++;
+                            } else {
+                                if (emptyValues > 0 && invalidValue == null) {
+                                    invalidValue = new NumberFormatException("Empty value in row " + (context.rowCount + 1) + " of " + location);
+                                }
+                                try {
+                                    float value = parseFloat(context.token, tokenLength);
+                                    if (context.rowCount == 0 || column < context.columnCount) {
+                                        context.getRow(context.rowCount, column + 1)[column] = value;
+                                    }
+                                } catch (NumberFormatException e) {
+                                    if (invalidValue == null) {
+                                        invalidValue = e;
+                                    }
+                                }
+                                column++;
+                                emptyValues = 0;
+                            }
+                            tokenChars = 0;
+                            tokenLength = 0;
+                        }
+                        
+                        if (endOfLine) {
+                            //Lines of 5 characters or less are skipped
+                            if (lineLength > 5) {
+                                if (invalidValue != null) {
+                                    throw invalidValue;
+                                }
+                                if (context.rowCount == 0) {
+                                    context.columnCount = column;
+                                } else if (column < context.columnCount) {
+                                    throw new IOException("Row " + (context.rowCount + 1) + " of " + location + " has " + column + " values, expected " + context.columnCount);
+                                }
+                                context.rowCount++;
+                            }
+                            column = 0;
+                            lineLength = 0;
+                            tokenChars = 0;
+                            tokenLength = 0;
+                            emptyValues = 0;
+                            invalidValue = null;
+                        } else {
+                            lineLength++;
+                            if (c != ',') {
+                                tokenChars++;
+                                //Spaces are removed from values, other white space is trimmed when parsed
+                                if (c != ' ') {
+                                    if (tokenLength == context.token.length) {
+                                        context.token = Arrays.copyOf(context.token, tokenLength * 2);
+                                    }
+                                    context.token[tokenLength++] = c;
+                                }
+                            }
+                        }
                     }
-                    songMatrix.add(row);
                 }
             }
-            br.close();
         } else {
             System.out.println("Cannot find file: " + f.getAbsolutePath());
         }
-        return songMatrix;
+        if (event.isEnabled()) {
+            event.finish(context.rowCount, context.columnCount, 0, f.length());
+        }
     }
     
-    
     /**
-     * Decode a track using ActiveOnEncoding
+     * Parse a decimal value without creating a string. Only values whose
+     * digits and power of ten are both exact in a float are parsed here, so
+     * the single rounding of the division gives the same value as
+     * Float.parseFloat. Other values, such as exponents or long fractions,
+     * fall back to Float.parseFloat, so invalid values are rejected as it would
      * 
-     * @param t Track to append notes to
-     * @param notes CSV matrix of notes
-     * @param minimumKey minimum key
-     * @param velocity velocity of notes 
-     * @param quantisation quantisation level
-     * @return quantity of notes in track
-     * @throws InvalidMidiDataException
-     * @throws Exception 
+     * @param token Characters of the value
+     * @param length Quantity of characters
+     * @return Parsed value
      */
-    private static int decodeTrack(Track t, ArrayList<ArrayList<Float>> notes, int minimumKey, int velocity, int quantisation) throws InvalidMidiDataException, Exception {
-        return ActiveOnEncoding.decode(t, notes, minimumKey, velocity, quantisation);
+    static float parseFloat(char[] token, int length) {
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (token[0] == '-' || token[0] == '+')) {
+            negative = token[0] == '-';
+            i++;
+        }
+        
+        int mantissa = 0;
+        boolean hasDigits = false;
+        int scale = 0;
+        boolean decimal = false;
+        for (; i < length; i++) {
+            char c = token[i];
+            if (c >= '0' && c <= '9') {
+                hasDigits = true;
+                mantissa = mantissa * 10 + (c - '0');
+                if (decimal) {scale++;}
+                if (mantissa > MAXIMUM_EXACT_MANTISSA || scale >= POWERS_OF_TEN.length) {
+                    break;
+                }
+            } else if (c == '.' && !decimal) {
+                decimal = true;
+            } else {
+                break;
+            }
+        }
+        
+        if (i < length || !hasDigits) {
+            return Float.parseFloat(new String(token, 0, length));
+        }
+        float value = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
     }
     
+    //Largest mantissa and powers of ten which are exact in a float
+    private static final int MAXIMUM_EXACT_MANTISSA = 1 << 24;
+    private static final float[] POWERS_OF_TEN = {
+        1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+    };
+    
     /**
      * Converts a semi-tone string into an integer index.
      * 0 = C-2,
@@ -122,7 +259,7 @@ public class Convertor {
      * @param input Semi-tone string
      * @return key index
      */
-    private static int parseKeyString(String input) {
+    static int parseKeyString(String input) {
         int keyValue = 0;
         for (int index = 0; index < NOTE_NAMES.length; index++) {
             if (input.toUpperCase().startsWith(NOTE_NAMES[index].toUpperCase())) {
@@ -1,8 +1,23 @@
 package com.garlick.csv_midi_convertor;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
 import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiDevice;
 import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
 import javax.sound.midi.Sequence;
 
 public class MIDIConvertor {
@@ -11,6 +26,11 @@ public class MIDIConvertor {
     public static final String MINIMUM_SEMI_TONE = "C0"; //Inclusive
     public static final float DEFAULT_QUANTISATION = 0.25f;
     public static final int DEFAULT_VELOCITY = 70;
+    public static final String DEFAULT_GLOB = "**.csv";
+    public static final String STREAM_INPUT = "-";
+    public static final String BATCH_EXTENSION = ".npy";
+    public static final long BEAT_MICROS = 500000; //Default MIDI tempo of 120 bpm
+    public static final int DEFAULT_SHARD_COUNT = 64;
     
     /**
      * Entry point
@@ -35,6 +55,8 @@ public class MIDIConvertor {
             String outputLocation = args[1];
             int trackCount = Integer.parseInt(args[2]);
             String type = (new File(inputLocation)).isDirectory()? "folder" : "file";
+            if (inputLocation.equals(STREAM_INPUT)) {type = "stream";}
+            if (inputLocation.endsWith(BATCH_EXTENSION)) {type = "batch";}
 
             //Extract Optional info
             String minimumKey = MINIMUM_SEMI_TONE;
@@ -46,39 +68,74 @@ public class MIDIConvertor {
             int velocity = DEFAULT_VELOCITY;
             if (args.length > 5) {velocity = Integer.parseInt(args[5]);}
             
+            String glob = DEFAULT_GLOB;
+            if (args.length > 6) {glob = args[6];}
+            
+            Path jobDir = null;
+            if (args.length > 7 && !args[7].isEmpty()) {jobDir = Paths.get(args[7]);}
+            
+            int shardCount = DEFAULT_SHARD_COUNT;
+            if (args.length > 8) {shardCount = Integer.parseInt(args[8]);}
+            if (shardCount < 1) {
+                System.out.println("Shard count must be at least 1, not " + shardCount + ".");
+                printUsage();
+                return;
+            }
+            
+            float threshold = ActiveOnEncoding.DEFAULT_THRESHOLD;
+            if (args.length > 9) {threshold = Float.parseFloat(args[9]);}
+            
 
             //Output to user
             System.out.println("-- Converting " + type + ": '"+inputLocation+"'->'"+inputLocation+"'"
                     + " with "+outputLocation + " tracks;"
                     + " Minimum semi-tone " + minimumKey + ";"
                     + " Quantisation: " + quantisation + ";"
-                    + " Note Velocity: " + velocity + " --");
+                    + " Note Velocity: " + velocity + ";"
+                    + " Threshold: " + threshold + " --");
             
             
             //Convert
             switch (type) {
                 case "file":
-                    parseFile(inputLocation, outputLocation, trackCount, minimumKey, quantisation, velocity);
+                    parseFile(inputLocation, outputLocation, trackCount, minimumKey, quantisation, velocity, threshold);
                     break;
                 case "folder":
-                    parseFolder(inputLocation, outputLocation, trackCount, minimumKey, quantisation, velocity);
+                    parseFolder(inputLocation, outputLocation, trackCount, minimumKey, quantisation, velocity, glob, jobDir, shardCount, threshold);
+                    break;
+                case "stream":
+                    parseStream(outputLocation, trackCount, minimumKey, quantisation, velocity, threshold);
+                    break;
+                case "batch":
+                    parseBatch(inputLocation, outputLocation, trackCount, minimumKey, quantisation, velocity, threshold);
                     break;
             }
             
         } else {
-            System.out.println("==================\n"
-                    + "Please enter the required arguments: \n"
-                    + "*Input File/Input Path (string)\n"
-                    + "*Output File/Output Path (string)\n"
-                    + "*Tracks Count (int)\n"
-                    + "Minimum Semi-Tone Bound (String)\n"
-                    + "Quantisation Level (int)\n"
-                    + "Note Velocity (int)\n\n"
-                    + "For more information, please see: https://github.com/SamGarlick/A-Machine-Learning-Approach-To-Multi-Instrumental-Composition\n"
-                    + "==================");
+            printUsage();
         }
     }
     
+    /**
+     * Print the arguments of the convertor
+     */
+    private static void printUsage() {
+        System.out.println("==================\n"
+                + "Please enter the required arguments: \n"
+                + "*Input File/Input Path, a .npy batch of songs, or '-' to stream time steps from stdin (string)\n"
+                + "*Output File/Output Path, or MIDI device when streaming (string)\n"
+                + "*Tracks Count (int)\n"
+                + "Minimum Semi-Tone Bound (String)\n"
+                + "Quantisation Level (int)\n"
+                + "Note Velocity (int)\n"
+                + "Glob of files to convert in folders (string)\n"
+                + "Shared job folder to convert folders with several processes (string)\n"
+                + "Shards to split folders into between processes (int)\n"
+                + "Threshold above which a value is set (float)\n\n"
+                + "For more information, please see: https://github.com/SamGarlick/A-Machine-Learning-Approach-To-Multi-Instrumental-Composition\n"
+                + "==================");
+    }
+    
     
     /**
      * Convert a given CSV to midi file type
@@ -89,22 +146,146 @@ public class MIDIConvertor {
      * @param minimumKey Minimum key bounds
      * @param quantisation Quantisation level for music
      * @param velocity Note Velocity
+     * @param threshold Value above which a bit is set
      * @throws InvalidMidiDataException
      * @throws Exception 
      */
     private static void parseFile(String inputFile, String outputFile,
             int trackCount, String minimumKey, 
-            float quantisation, int velocity) throws InvalidMidiDataException, Exception {
+            float quantisation, int velocity, float threshold) throws InvalidMidiDataException, Exception {
         
-        Sequence seq = Convertor.encode(inputFile, trackCount, minimumKey, velocity, quantisation);
-        MidiSystem.write(seq, 1, new File(outputFile)); 
+        convertFile(inputFile, outputFile, trackCount, minimumKey, quantisation, velocity, threshold, new ConversionContext());
 
         System.out.println("-- Finished exporting "+outputFile+" --");
     }
     
     
     /**
-     * Loop through files in folder and save as MIDI
+     * Read time steps from stdin, one column of the song matrix per line,
+     * and play them on a MIDI device as they arrive
+     * 
+     * @param device Name of the MIDI device to play to, or '-' for the default
+     * @param trackCount Tracks in each time step
+     * @param minimumKey Minimum key bounds
+     * @param quantisation Quantisation level for music
+     * @param velocity Note Velocity
+     * @param threshold Value above which a bit is set
+     * @throws Exception 
+     */
+    private static void parseStream(String device, int trackCount, String minimumKey, 
+            float quantisation, int velocity, float threshold) throws Exception {
+        
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        String line = reader.readLine();
+        if (line == null) {
+            return;
+        }
+        
+        //Size the decoder from the first time step
+        String[] tokens = line.split(",");
+        float[] step = new float[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            step[i] = Float.parseFloat(tokens[i].trim());
+        }
+        int keyCount = step.length / (trackCount * 2);
+        long stepMicros = (long) (quantisation * BEAT_MICROS);
+        
+        MidiDevice midiDevice = getDevice(device);
+        try (Receiver receiver = midiDevice != null ? midiDevice.getReceiver() : MidiSystem.getReceiver()) {
+            StreamingDecoder decoder = new StreamingDecoder(receiver, trackCount, keyCount, 
+                    Convertor.parseKeyString(minimumKey), velocity, stepMicros, threshold);
+            decoder.step(step);
+            decoder.decode(reader);
+            System.out.println("-- Finished streaming " + decoder.getStepCount() + " steps with " + decoder.getNotesCount() + " notes --");
+        } finally {
+            //The default receiver closes its own device, a named device is opened here
+            if (midiDevice != null) {
+                midiDevice.close();
+            }
+        }
+    }
+    
+    /**
+     * Decode every song of a batch file, saving each as MIDI in the output
+     * folder
+     * 
+     * @param inputFile Input .npy batch location
+     * @param outputLocation Output path to save MIDI to
+     * @param trackCount Tracks in each song
+     * @param minimumKey Minimum key bounds
+     * @param quantisation Quantisation level for music
+     * @param velocity Note Velocity
+     * @param threshold Value above which a bit is set
+     * @throws Exception 
+     */
+    private static void parseBatch(String inputFile, String outputLocation, int trackCount, String minimumKey, 
+            float quantisation, int velocity, float threshold) throws Exception {
+        
+        BatchDecoder decoder = new BatchDecoder(Paths.get(inputFile));
+        System.out.println("-- Decoding " + decoder.getSongCount() + " songs of " + decoder.getRowCount() + " rows by " + decoder.getColumnCount() + " steps --");
+        int decodedSongs = decoder.decode(Paths.get(outputLocation), trackCount, minimumKey, velocity, 
+                quantisation, threshold, Runtime.getRuntime().availableProcessors());
+        System.out.println("-- Finished exporting " + decodedSongs + " files --");
+    }
+    
+    /**
+     * Find and open a MIDI device with a receiver by name. The caller must
+     * close the device once streaming ends
+     * 
+     * @param device Name of the device, or '-' for the default receiver
+     * @return Opened device, or null to use the default receiver
+     * @throws MidiUnavailableException 
+     */
+    private static MidiDevice getDevice(String device) throws MidiUnavailableException {
+        if (device.equals(STREAM_INPUT)) {
+            return null;
+        }
+        for (MidiDevice.Info info : MidiSystem.getMidiDeviceInfo()) {
+            MidiDevice midiDevice = MidiSystem.getMidiDevice(info);
+            if (info.getName().equals(device) && midiDevice.getMaxReceivers() != 0) {
+                midiDevice.open();
+                return midiDevice;
+            }
+        }
+        throw new MidiUnavailableException("Cannot find MIDI device: " + device);
+    }
+    
+    /**
+     * Convert a CSV file and save the MIDI sequence, recording the conversion
+     * as a flight recorder event
+     * 
+     * @param inputFile Input csv location
+     * @param outputFile Output midi location
+     * @param trackCount Tracks per midi to be converted
+     * @param minimumKey Minimum key bounds
+     * @param quantisation Quantisation level for music
+     * @param velocity Note Velocity
+     * @param threshold Value above which a bit is set
+     * @param context Buffers reused between conversions
+     * @throws Exception 
+     */
+    private static void convertFile(String inputFile, String outputFile,
+            int trackCount, String minimumKey, 
+            float quantisation, int velocity, float threshold, ConversionContext context) throws Exception {
+        
+        ConversionEvent event = ConversionEvent.start(inputFile);
+        Sequence seq = Convertor.encode(inputFile, trackCount, minimumKey, velocity, quantisation, threshold, context);
+        MidiSystem.write(seq, 1, new File(outputFile)); 
+        
+        if (event.isEnabled()) {
+            event.finish(seq.getTracks().length, ConversionEvent.countNotes(seq), new File(inputFile).length(), new File(outputFile).length());
+        }
+    }
+    
+    /**
+     * Walk through the folder and its sub-folders, saving every file matching
+     * the glob as MIDI to the same relative location in the output path.
+     * Converted files are recorded in a journal so an interrupted run resumes
+     * where it stopped. If a job folder is given the files are instead split
+     * into shards, claimed through the job folder, so several processes can
+     * convert the folder at once. Each shard has its own journal in the job
+     * folder, so a process taking over the shard of a crashed process resumes
+     * where it stopped
      * 
      * @param inputLocation Input path to read CSVs from
      * @param outputLocation Output path to save MIDI to
@@ -112,30 +293,154 @@ public class MIDIConvertor {
      * @param minimumKey Minimum semi tone bound
      * @param quantisation Quantisation level 
      * @param velocity Note velocity
+     * @param glob Glob of input files to convert
+     * @param jobDir Job folder shared between processes, or null
+     * @param shardCount Shards to split the files into
+     * @param threshold Value above which a bit is set
      */
-    private static void parseFolder(String inputLocation, String outputLocation, int trackCount, String minimumKey, float quantisation, int velocity) throws Exception {
+    private static void parseFolder(String inputLocation, String outputLocation, int trackCount, String minimumKey, float quantisation, int velocity, String glob, Path jobDir, int shardCount, float threshold) throws Exception {
         
-        File inpDir = new File(inputLocation);
-        File outDir = new File(outputLocation);
-        if (!outDir.exists()) {
-            System.out.println("Creating folder: " + outDir.getAbsolutePath());
-            outDir.mkdir();
+        Path inpDir = Paths.get(inputLocation).toAbsolutePath();
+        Path outDir = Paths.get(outputLocation).toAbsolutePath();
+        if (!Files.exists(outDir)) {
+            System.out.println("Creating folder: " + outDir);
+            Files.createDirectories(outDir);
         }
         
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        ConversionContext context = new ConversionContext();
         int convertedFiles = 0;
         
-        System.out.println("-- Parsing files in: " + inpDir.getAbsolutePath()+" --");
-        for (File f : inpDir.listFiles()) {
-            String filePath = f.getPath();
+        System.out.println("-- Parsing files in: " + inpDir + " --");
+        if (jobDir == null) {
+            try (ConversionJournal journal = new ConversionJournal(outDir)) {
+                if (journal.getResumedCount() > 0) {
+                    System.out.println("-- Resuming, skipping " + journal.getResumedCount() + " converted files --");
+                }
+                try (Stream<Path> files = walkFiles(inpDir, matcher)) {
+                    convertedFiles = convertFiles(inpDir, outDir, files.iterator(), journal, trackCount, minimumKey, quantisation, velocity, threshold, context);
+                }
+                journal.finish();
+            }
+        } else {
+            try (WorkClaims claims = new WorkClaims(jobDir)) {
+                //Every worker must split the files into the same shards
+                claims.requireSetting("shards", Integer.toString(shardCount));
+                List<List<Path>> shards = listShards(inpDir, matcher, shardCount);
+                boolean waiting = true;
+                while (waiting) {
+                    waiting = false;
+                    boolean claimed = false;
+                    for (int shard = 0; shard < shardCount; shard++) {
+                        String unit = "shard-" + shard;
+                        if (claims.claim(unit)) {
+                            try (ConversionJournal journal = new ConversionJournal(jobDir, unit + ".journal")) {
+                                System.out.println("-- Converting shard " + shard + " of " + shardCount + ", skipping " + journal.getResumedCount() + " converted files --");
+                                convertedFiles += convertFiles(inpDir, outDir, shards.get(shard).iterator(), journal, trackCount, minimumKey, quantisation, velocity, threshold, context);
+                                claims.complete(unit);
+                                journal.finish();
+                            }
+                            claimed = true;
+                        } else if (!claims.isDone(unit)) {
+                            waiting = true;
+                        }
+                    }
+                    
+                    //Wait for the shards claimed by other processes to finish or expire
+                    if (waiting && !claimed) {
+                        Thread.sleep(WorkClaims.POLL_MILLIS);
+                    }
+                }
+            }
+        }
+        System.out.println("-- Finished exporting " + convertedFiles + " files --");
+    }
+    
+    /**
+     * Walk through the folder and its sub-folders once, splitting the files
+     * matching the glob into shards by the hash of their relative path, so
+     * every process puts each file in the same shard
+     * 
+     * @param inpDir Input path to read CSVs from
+     * @param matcher Matcher of input files to convert
+     * @param shardCount Shards to split the files into
+     * @return Relative paths of the files in each shard
+     * @throws IOException 
+     */
+    private static List<List<Path>> listShards(Path inpDir, PathMatcher matcher, int shardCount) throws IOException {
+        List<List<Path>> shards = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            shards.add(new ArrayList<>());
+        }
+        try (Stream<Path> files = walkFiles(inpDir, matcher)) {
+            Iterator<Path> it = files.iterator();
+            while (it.hasNext()) {
+                Path relativePath = it.next();
+                shards.get(Math.floorMod(getFileKey(relativePath).hashCode(), shardCount)).add(relativePath);
+            }
+        }
+        return shards;
+    }
+    
+    /**
+     * Lazily walk through the input path and its sub-folders, so files are
+     * converted as they are found
+     * 
+     * @param inpDir Input path to read midi files from
+     * @param matcher Matcher of input files to convert
+     * @return Relative paths of the files matching the glob, to be closed
+     * @throws IOException 
+     */
+    private static Stream<Path> walkFiles(Path inpDir, PathMatcher matcher) throws IOException {
+        return Files.walk(inpDir)
+                .filter(f -> Files.isRegularFile(f) && matcher.matches(inpDir.relativize(f)))
+                .map(inpDir::relativize);
+    }
+    
+    /**
+     *
+     * @param relativePath Path of a file relative to the folder
+     * @return Name of the file in journals, the same on every platform
+     */
+    private static String getFileKey(Path relativePath) {
+        return relativePath.toString().replace(File.separatorChar, '/');
+    }
+    
+    /**
+     * Convert the given files of the folder which have not been journaled
+     * 
+     * @param inpDir Input path to read CSVs from
+     * @param outDir Output path to save MIDI to
+     * @param files Paths of the files relative to the folder
+     * @param journal Journal of converted files
+     * @param trackCount Amount of tracks in each song
+     * @param minimumKey Minimum semi tone bound
+     * @param quantisation Quantisation level 
+     * @param velocity Note velocity
+     * @param threshold Value above which a bit is set
+     * @param context Buffers reused between conversions
+     * @return Quantity of files converted
+     */
+    private static int convertFiles(Path inpDir, Path outDir, Iterator<Path> files, ConversionJournal journal, int trackCount, String minimumKey, float quantisation, int velocity, float threshold, ConversionContext context) throws Exception {
+        
+        int convertedFiles = 0;
+        while (files.hasNext()) {
+            Path relativePath = files.next();
+            String key = getFileKey(relativePath);
+            if (journal.isComplete(key)) {
+                continue;
+            }
             
-            //Check if valid file
-            String output = outDir.getAbsolutePath() + "/" +  f.getName().split("\\.")[0] + ".mid";
+            Path f = inpDir.resolve(relativePath);
+            Path outFolder = outDir.resolve(relativePath).getParent();
+            Files.createDirectories(outFolder);
+            String output = outFolder.resolve(f.getFileName().toString().split("\\.")[0] + ".mid").toString();
             
             //Convert and save
-            Sequence seq = Convertor.encode(filePath, trackCount, minimumKey, velocity, quantisation);
-            MidiSystem.write(seq, 1, new File(output)); 
+            convertFile(f.toString(), output, trackCount, minimumKey, quantisation, velocity, threshold, context);
+            journal.markComplete(key);
             convertedFiles++;
         }
-        System.out.println("-- Finished exporting " + convertedFiles + " files --");
+        return convertedFiles;
     }
 }
@@ -0,0 +1,207 @@
+package com.garlick.csv_midi_convertor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+/**
+ * Decodes a song matrix one time step at a time, sending note on and off
+ * messages to a MIDI receiver as each step arrives. The notes are the same
+ * as those of a decoded file, with time stamps in microseconds rather than
+ * ticks. A receiver has no tracks, so each track of the matrix is played on
+ * its own channel, where a decoded file keeps every track on channel 0 in
+ * its own MIDI track. Channel 9 is skipped, as General MIDI plays it as
+ * percussion, so the 15 other channels are shared by every 15th track.
+ *
+ * @author Sam Garlick
+ */
+public class StreamingDecoder implements AutoCloseable {
+
+    //Step which marks the end of a queue of steps
+    public static final float[] END_OF_STREAM = new float[0];
+
+    //Channel played as percussion by General MIDI, which no track is sent on
+    public static final int PERCUSSION_CHANNEL = 9;
+
+    //Receiver to send notes to
+    private final Receiver receiver;
+
+    //Song layout
+    private final int trackCount;
+    private final int keyCount;
+    private final int minimumKey;
+    private final int velocity;
+    private final long stepMicros;
+    private final float threshold;
+
+    //Keys currently sounding, per track
+    private final boolean[] activeKeys;
+    private long stepNo = 0;
+    private long notesCount = 0;
+    private long lastStepLatency = 0;
+
+    /**
+     * Create a streaming decoder
+     *
+     * @param receiver Receiver to send notes to
+     * @param trackCount Tracks in each time step
+     * @param keyCount Semi-tones in each track
+     * @param minimumKey Minimum key to alter notes by
+     * @param velocity Velocity of notes
+     * @param stepMicros Length of a time step in microseconds
+     * @param threshold Value above which a bit is set
+     */
+    public StreamingDecoder(Receiver receiver, int trackCount, int keyCount, int minimumKey, int velocity, long stepMicros, float threshold) {
+        this.receiver = receiver;
+        this.trackCount = trackCount;
+        this.keyCount = keyCount;
+        this.minimumKey = minimumKey;
+        this.velocity = velocity;
+        this.stepMicros = stepMicros;
+        this.threshold = threshold;
+        this.activeKeys = new boolean[trackCount * keyCount];
+    }
+
+    /**
+     * Decode a single time step, a column of the song matrix holding the
+     * active and start values of every key in every track
+     *
+     * @param step Column of the song matrix
+     * @throws InvalidMidiDataException
+     */
+    public void step(float[] step) throws InvalidMidiDataException {
+        if (step.length != this.trackCount * this.keyCount * 2) {
+            throw new IllegalArgumentException("Expected " + (this.trackCount * this.keyCount * 2) + " values in time step but found " + step.length);
+        }
+
+        long start = System.nanoTime();
+        long timeStamp = this.stepNo * this.stepMicros;
+        for (int trackNo = 0; trackNo < this.trackCount; trackNo++) {
+            for (int keyNo = 0; keyNo < this.keyCount; keyNo++) {
+                int index = trackNo * this.keyCount + keyNo;
+                boolean keyActive = step[index * 2] > this.threshold;
+                boolean keyStart = step[index * 2 + 1] > this.threshold;
+
+                int change = ActiveOnEncoding.getKeyChange(keyActive, keyStart, this.activeKeys[index]);
+                if ((change & ActiveOnEncoding.KEY_OFF) != 0) {
+                    this.activeKeys[index] = false;
+                    send(ShortMessage.NOTE_OFF, trackNo, keyNo, timeStamp);
+                }
+                if ((change & ActiveOnEncoding.KEY_ON) != 0) {
+                    this.notesCount++;
+                    this.activeKeys[index] = true;
+                    send(ShortMessage.NOTE_ON, trackNo, keyNo, timeStamp);
+                }
+            }
+        }
+        this.stepNo++;
+        this.lastStepLatency = (System.nanoTime() - start) / 1000;
+    }
+
+    /**
+     * Decode steps from a queue until END_OF_STREAM is taken
+     *
+     * @param steps Queue of time steps
+     * @throws InterruptedException
+     * @throws InvalidMidiDataException
+     */
+    public void decode(BlockingQueue<float[]> steps) throws InterruptedException, InvalidMidiDataException {
+        float[] step;
+        while ((step = steps.take()) != END_OF_STREAM) {
+            step(step);
+        }
+        close();
+    }
+
+    /**
+     * Decode steps from a reader, one comma separated time step per line,
+     * until the end of the stream
+     *
+     * @param reader Reader of time steps
+     * @throws IOException
+     * @throws InvalidMidiDataException
+     */
+    public void decode(BufferedReader reader) throws IOException, InvalidMidiDataException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            String[] tokens = line.split(",");
+            float[] step = new float[tokens.length];
+            for (int i = 0; i < tokens.length; i++) {
+                step[i] = Float.parseFloat(tokens[i].trim());
+            }
+            step(step);
+        }
+        close();
+    }
+
+    /**
+     * Turn off any keys left sounding
+     *
+     * @throws InvalidMidiDataException
+     */
+    @Override
+    public void close() throws InvalidMidiDataException {
+        long timeStamp = this.stepNo * this.stepMicros;
+        for (int index = 0; index < this.activeKeys.length; index++) {
+            if (this.activeKeys[index]) {
+                this.activeKeys[index] = false;
+                send(ShortMessage.NOTE_OFF, index / this.keyCount, index % this.keyCount, timeStamp);
+            }
+        }
+    }
+
+    /**
+     * Send a note message to the receiver
+     *
+     * @param command NOTE_ON or NOTE_OFF
+     * @param trackNo Track of the note
+     * @param keyNo Key of the note relative to the minimum key
+     * @param timeStamp Time of the message in microseconds
+     * @throws InvalidMidiDataException
+     */
+    private void send(int command, int trackNo, int keyNo, long timeStamp) throws InvalidMidiDataException {
+        ShortMessage message = new ShortMessage();
+        message.setMessage(command, getChannel(trackNo), keyNo + this.minimumKey, this.velocity);
+        this.receiver.send(message, timeStamp);
+    }
+
+    /**
+     *
+     * @param trackNo Track of the matrix
+     * @return Channel the track is played on, never the percussion channel
+     */
+    static int getChannel(int trackNo) {
+        int channel = trackNo % 15;
+        return channel < PERCUSSION_CHANNEL ? channel : channel + 1;
+    }
+
+    /**
+     *
+     * @return Time steps decoded so far
+     */
+    public long getStepCount() {
+        return this.stepNo;
+    }
+
+    /**
+     *
+     * @return Notes started so far
+     */
+    public long getNotesCount() {
+        return this.notesCount;
+    }
+
+    /**
+     *
+     * @return Time taken to decode the last step in microseconds
+     */
+    public long getLastStepLatency() {
+        return this.lastStepLatency;
+    }
+}
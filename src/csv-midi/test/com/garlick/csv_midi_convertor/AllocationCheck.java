@@ -0,0 +1,142 @@
+package com.garlick.csv_midi_convertor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+
+/**
+ * Checks that converting a folder allocates close to nothing beyond the
+ * MIDI events of each song once the buffers of the conversion context have
+ * grown. A folder of random CSVs is converted several times with one
+ * context to warm up, then the bytes allocated by this thread while
+ * converting it again are measured. A sequence holds an object for every
+ * event however the conversion is written, so the check fails if a note
+ * allocates more than the threshold.
+ *
+ * @author Sam Garlick
+ */
+public class AllocationCheck {
+
+    private static final int SONGS = 20;
+    private static final int TRACK_COUNT = 3;
+    private static final int KEY_COUNT = 61;
+    private static final int STEPS = 1024;
+    private static final int VELOCITY = 100;
+    private static final float QUANTISATION = 0.25f;
+    private static final String MINIMUM_KEY = "C1";
+    private static final int WARM_UP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 5;
+
+    //Most bytes a note may allocate, mostly its events in the sequence
+    private static final long MAXIMUM_BYTES_PER_NOTE = 512;
+
+    /**
+     * Entry point
+     *
+     * @param args Command line inputs
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        Path workDir = Files.createTempDirectory("allocation-check");
+        long bytesPerNote;
+        try {
+            Path inpDir = Files.createDirectories(workDir.resolve("csv"));
+            Path outDir = Files.createDirectories(workDir.resolve("midi"));
+            for (int songNo = 0; songNo < SONGS; songNo++) {
+                writeSong(songNo, inpDir.resolve("song" + songNo + ".csv").toFile());
+            }
+
+            ConversionContext context = new ConversionContext();
+            long notes = 0;
+            for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+                notes = convertFolder(inpDir, outDir, context);
+            }
+            long allocated = threads.getThreadAllocatedBytes(threadId);
+            for (int round = 0; round < MEASURED_ROUNDS; round++) {
+                convertFolder(inpDir, outDir, context);
+            }
+            bytesPerNote = (threads.getThreadAllocatedBytes(threadId) - allocated) / (Math.max(notes, 1) * MEASURED_ROUNDS);
+        } finally {
+            deleteFolder(workDir);
+        }
+
+        int failures = bytesPerNote > MAXIMUM_BYTES_PER_NOTE ? 1 : 0;
+        System.out.println("-- Allocated " + bytesPerNote + " bytes per note, at most " + MAXIMUM_BYTES_PER_NOTE + " expected --");
+        System.out.println("-- Checked " + SONGS * MEASURED_ROUNDS + " converted files with " + failures + " failures --");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Convert every song in the folder with the given context
+     *
+     * @param inpDir Folder of CSVs
+     * @param outDir Folder to save midi files to
+     * @param context Buffers reused between conversions
+     * @return Quantity of notes in the songs
+     * @throws Exception
+     */
+    private static long convertFolder(Path inpDir, Path outDir, ConversionContext context) throws Exception {
+        long notes = 0;
+        for (int songNo = 0; songNo < SONGS; songNo++) {
+            String inputFile = inpDir.resolve("song" + songNo + ".csv").toString();
+            Sequence sequence = Convertor.encode(inputFile, TRACK_COUNT, MINIMUM_KEY, VELOCITY, QUANTISATION,
+                    ActiveOnEncoding.DEFAULT_THRESHOLD, context);
+            MidiSystem.write(sequence, 1, outDir.resolve("song" + songNo + ".mid").toFile());
+            notes += ConversionEvent.countNotes(sequence);
+        }
+        return notes;
+    }
+
+    /**
+     * Save a random song matrix as a CSV, in the format of the MIDI to CSV
+     * convertor
+     *
+     * @param seed Seed of the song
+     * @param file File to save to
+     * @throws IOException
+     */
+    private static void writeSong(long seed, File file) throws IOException {
+        Random random = new Random(seed);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            for (int row = 0; row < TRACK_COUNT * KEY_COUNT * 2; row += 2) {
+                StringBuilder activeRow = new StringBuilder();
+                StringBuilder startRow = new StringBuilder();
+                boolean active = false;
+                for (int step = 0; step < STEPS; step++) {
+                    boolean start = random.nextInt(64) == 0;
+                    active = start || (active && random.nextInt(4) != 0);
+                    activeRow.append(step > 0 ? ", " : "").append(active ? 1 : 0);
+                    startRow.append(step > 0 ? ", " : "").append(start ? 1 : 0);
+                }
+                writer.write(activeRow.toString());
+                writer.write('\n');
+                writer.write(startRow.toString());
+                writer.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Delete a folder and everything in it
+     *
+     * @param folder Folder to delete
+     * @throws IOException
+     */
+    private static void deleteFolder(Path folder) throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
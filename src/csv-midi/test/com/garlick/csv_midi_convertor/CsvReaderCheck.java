@@ -0,0 +1,243 @@
+package com.garlick.csv_midi_convertor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that reading a CSV without creating strings gives the same values
+ * as the String.split and Float.parseFloat reader it replaced. Single values
+ * are compared with Float.parseFloat bit for bit, including long fractions
+ * which must not be rounded twice, and random files of valid and invalid
+ * values are compared with the split reader, which must either give the
+ * same matrix or both reject the file.
+ *
+ * @author Sam Garlick
+ */
+public class CsvReaderCheck {
+
+    //Values which have been parsed differently before
+    private static final String[] KNOWN_VALUES = {
+        "0.5000000298023224", "0.50000006", "16777217", "16777216.5", "0.1", "0.3",
+        "1.00000001", "3.4028235e38", "1e-45", "-0", "+.5", "1.", ".", "-", "", "0x1p3",
+        "123456789012345678901234567890", "0.000000000001", "NaN", "-Infinity", "1,5"
+    };
+
+    //Parts of random files
+    private static final String[] ATOMS = {
+        "0", "1", "0.5", "-", "+", ".", "1e3", "-0.25", " ", "\t", "\r\n", "\n", "\r",
+        ",", ",", ",", "0.999", "12345678901234567890.5", "NaN", "x", "1.", "-.5", ""
+    };
+
+    /**
+     * Entry point
+     *
+     * @param args Command line inputs, optionally the quantity of random cases
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int cases = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        Random random = new Random(1);
+        int failures = 0;
+
+        for (String value : KNOWN_VALUES) {
+            failures += checkValue(value) ? 0 : 1;
+        }
+        for (int caseNo = 0; caseNo < cases; caseNo++) {
+            failures += checkValue(generateValue(random)) ? 0 : 1;
+        }
+
+        File file = File.createTempFile("csv-reader-check", ".csv");
+        try {
+            ConversionContext context = new ConversionContext();
+            for (int caseNo = 0; caseNo < cases; caseNo++) {
+                String content = generateFile(random);
+                try (Writer writer = new FileWriter(file)) {
+                    writer.write(content);
+                }
+                failures += checkFile(file, content, context) ? 0 : 1;
+            }
+        } finally {
+            file.delete();
+        }
+
+        int checked = KNOWN_VALUES.length + cases * 2;
+        System.out.println("-- Checked " + checked + " values and files with " + failures + " failures --");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Parse a value both ways and compare the bits of the results
+     *
+     * @param value Value to parse
+     * @return True if both give the same value, or both reject it
+     */
+    private static boolean checkValue(String value) {
+        String expected;
+        try {
+            expected = Integer.toHexString(Float.floatToRawIntBits(Float.parseFloat(value)));
+        } catch (NumberFormatException e) {
+            expected = "invalid";
+        }
+        String parsed;
+        try {
+            parsed = Integer.toHexString(Float.floatToRawIntBits(Convertor.parseFloat(value.toCharArray(), value.length())));
+        } catch (NumberFormatException e) {
+            parsed = "invalid";
+        }
+
+        if (!expected.equals(parsed)) {
+            System.out.println("Value '" + value + "' parsed as " + parsed + ", expected " + expected);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read a file both ways and compare the matrices
+     *
+     * @param file File to read
+     * @param content Content of the file
+     * @param context Context to read the matrix into
+     * @return True if both give the same matrix, or both reject the file
+     * @throws Exception
+     */
+    private static boolean checkFile(File file, String content, ConversionContext context) throws Exception {
+        List<List<Float>> expected = null;
+        try {
+            expected = readSplit(file);
+        } catch (NumberFormatException e) {
+            //Rejected, so the row lengths are not checked
+        }
+        Exception error = null;
+        try {
+            Convertor.convertFileToMatrix(file.getPath(), context);
+        } catch (NumberFormatException | IOException e) {
+            error = e;
+        }
+
+        boolean matches;
+        if (expected == null) {
+            matches = error != null;
+        } else if (hasShortRow(expected)) {
+            //The split reader failed later, when encoding the short row
+            matches = error instanceof IOException;
+        } else {
+            matches = error == null && context.rowCount == expected.size()
+                    && context.columnCount == (expected.isEmpty() ? 0 : expected.get(0).size());
+            for (int row = 0; matches && row < context.rowCount; row++) {
+                for (int column = 0; matches && column < context.columnCount; column++) {
+                    matches = Float.floatToRawIntBits(expected.get(row).get(column))
+                            == Float.floatToRawIntBits(context.matrix[row][column]);
+                }
+            }
+        }
+
+        if (!matches) {
+            System.out.println("File '" + content.replace("\r", "\\r").replace("\n", "\\n").replace("\t", "\\t")
+                    + "' read differently: " + (error == null ? context.rowCount + "x" + context.columnCount : error.toString())
+                    + ", expected " + (expected == null ? "invalid" : expected.toString()));
+        }
+        return matches;
+    }
+
+    /**
+     * Read a file as the convertor did with String.split and Float.parseFloat
+     *
+     * @param file File to read
+     * @return Values of each row
+     * @throws IOException
+     */
+    private static List<List<Float>> readSplit(File file) throws IOException {
+        List<List<Float>> matrix = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 5) {
+                    List<Float> row = new ArrayList<>();
+                    for (String value : line.split(",")) {
+                        row.add(Float.parseFloat(value.replaceAll(" ", "")));
+                    }
+                    matrix.add(row);
+                }
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     *
+     * @param matrix Values of each row
+     * @return True if a row has fewer values than the first row
+     */
+    private static boolean hasShortRow(List<List<Float>> matrix) {
+        for (List<Float> row : matrix) {
+            if (row.size() < matrix.get(0).size()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *
+     * @param random Source of randomness
+     * @return Random decimal, with up to 20 digits either side of the point
+     */
+    private static String generateValue(Random random) {
+        StringBuilder value = new StringBuilder();
+        if (random.nextInt(4) == 0) {
+            value.append(random.nextBoolean() ? '-' : '+');
+        }
+        int whole = random.nextInt(random.nextBoolean() ? 3 : 21);
+        for (int i = 0; i < whole; i++) {
+            value.append((char) ('0' + random.nextInt(10)));
+        }
+        if (random.nextInt(8) != 0) {
+            value.append('.');
+            int fraction = random.nextInt(21);
+            for (int i = 0; i < fraction; i++) {
+                value.append((char) ('0' + random.nextInt(10)));
+            }
+        }
+        return random.nextInt(4) == 0 ? Float.toString(random.nextFloat()) : value.toString();
+    }
+
+    /**
+     *
+     * @param random Source of randomness
+     * @return Random file, either rows of values or a jumble of parts
+     */
+    private static String generateFile(Random random) {
+        StringBuilder content = new StringBuilder();
+        if (random.nextBoolean()) {
+            int rows = 1 + random.nextInt(4);
+            int columns = 3 + random.nextInt(4);
+            for (int row = 0; row < rows; row++) {
+                int rowColumns = columns + (random.nextInt(5) == 0 ? random.nextInt(3) - 1 : 0);
+                for (int column = 0; column < rowColumns; column++) {
+                    if (column > 0) {
+                        content.append(',');
+                    }
+                    content.append(random.nextInt(8) == 0 ? ATOMS[random.nextInt(ATOMS.length)] : generateValue(random));
+                }
+                if (random.nextInt(6) == 0) {
+                    content.append(',');
+                }
+                content.append(random.nextInt(3) == 0 ? "\r\n" : "\n");
+            }
+        } else {
+            int parts = random.nextInt(60);
+            for (int i = 0; i < parts; i++) {
+                content.append(ATOMS[random.nextInt(ATOMS.length)]);
+            }
+        }
+        return content.toString();
+    }
+}
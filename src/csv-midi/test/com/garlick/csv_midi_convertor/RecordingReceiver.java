@@ -0,0 +1,58 @@
+package com.garlick.csv_midi_convertor;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+
+/**
+ * Receiver which records every message sent to it with its time stamp, in
+ * place of a MIDI device when checking streamed output.
+ *
+ * @author Sam Garlick
+ */
+public class RecordingReceiver implements Receiver {
+
+    //Messages received, in order, and their time stamps in microseconds
+    private final List<MidiMessage> messages = new ArrayList<>();
+    private final List<Long> timeStamps = new ArrayList<>();
+    private boolean closed = false;
+
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        if (this.closed) {
+            throw new IllegalStateException("Receiver is closed");
+        }
+        this.messages.add((MidiMessage) message.clone());
+        this.timeStamps.add(timeStamp);
+    }
+
+    /**
+     *
+     * @return Messages received, in order
+     */
+    public List<MidiMessage> getMessages() {
+        return this.messages;
+    }
+
+    /**
+     *
+     * @return Time stamp of each message in microseconds
+     */
+    public List<Long> getTimeStamps() {
+        return this.timeStamps;
+    }
+
+    /**
+     *
+     * @return True if the receiver has been closed
+     */
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+    }
+}
@@ -0,0 +1,151 @@
+package com.garlick.csv_midi_convertor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Checks that streaming a song matrix to a receiver sends the same notes,
+ * in the same order and at the same time steps, as decoding it to a file.
+ * Random matrices are decoded both ways, including keys still sounding at
+ * the last step, and each track of the file is compared with the messages
+ * streamed on its channel. Songs have enough tracks to pass the percussion
+ * channel, which nothing may be streamed on.
+ *
+ * @author Sam Garlick
+ */
+public class StreamingDecoderCheck {
+
+    private static final int TRACK_COUNT = 12;
+    private static final int KEY_COUNT = 24;
+    private static final int STEPS = 256;
+    private static final int VELOCITY = 100;
+    private static final float QUANTISATION = 0.25f;
+    private static final String MINIMUM_KEY = "C2";
+
+    /**
+     * Entry point
+     *
+     * @param args Command line inputs, optionally the quantity of songs
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int songs = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int failures = 0;
+        for (int songNo = 0; songNo < songs; songNo++) {
+            failures += check(songNo) ? 0 : 1;
+        }
+        System.out.println("-- Checked " + songs + " streamed songs with " + failures + " failures --");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Decode a random song both ways and compare the notes
+     *
+     * @param seed Seed of the song
+     * @return True if the streamed notes match the file
+     * @throws Exception
+     */
+    private static boolean check(long seed) throws Exception {
+        ConversionContext context = new ConversionContext();
+        float[][] steps = generateSong(seed, context);
+
+        Sequence sequence = Convertor.encodeMatrix("song" + seed, TRACK_COUNT, MINIMUM_KEY, VELOCITY,
+                QUANTISATION, ActiveOnEncoding.DEFAULT_THRESHOLD, context);
+        int ticksPerStep = (int) (sequence.getResolution() * QUANTISATION);
+
+        long stepMicros = (long) (QUANTISATION * MIDIConvertor.BEAT_MICROS);
+        RecordingReceiver receiver = new RecordingReceiver();
+        StreamingDecoder decoder = new StreamingDecoder(receiver, TRACK_COUNT, KEY_COUNT,
+                Convertor.parseKeyString(MINIMUM_KEY), VELOCITY, stepMicros, ActiveOnEncoding.DEFAULT_THRESHOLD);
+        for (float[] step : steps) {
+            decoder.step(step);
+        }
+        decoder.close();
+
+        boolean matches = true;
+        Track[] tracks = sequence.getTracks();
+        for (int trackNo = 0; trackNo < TRACK_COUNT; trackNo++) {
+            List<String> fileNotes = new ArrayList<>();
+            Track track = tracks[trackNo];
+            for (int i = 0; i < track.size(); i++) {
+                MidiMessage message = track.get(i).getMessage();
+                if (message instanceof ShortMessage) {
+                    fileNotes.add(describe((ShortMessage) message, track.get(i).getTick(), ticksPerStep));
+                }
+            }
+
+            List<String> streamedNotes = new ArrayList<>();
+            for (int i = 0; i < receiver.getMessages().size(); i++) {
+                ShortMessage message = (ShortMessage) receiver.getMessages().get(i);
+                if (message.getChannel() == StreamingDecoder.getChannel(trackNo)) {
+                    streamedNotes.add(describe(message, receiver.getTimeStamps().get(i), stepMicros));
+                }
+            }
+
+            if (!fileNotes.equals(streamedNotes)) {
+                System.out.println("Song " + seed + " track " + trackNo + " differs: file " + fileNotes.size()
+                        + " messages, streamed " + streamedNotes.size() + " messages");
+                matches = false;
+            }
+        }
+        for (MidiMessage message : receiver.getMessages()) {
+            if (((ShortMessage) message).getChannel() == StreamingDecoder.PERCUSSION_CHANNEL) {
+                System.out.println("Song " + seed + " streamed notes on the percussion channel");
+                matches = false;
+                break;
+            }
+        }
+        if (decoder.getNotesCount() * 2 != receiver.getMessages().size()) {
+            System.out.println("Song " + seed + " left notes sounding after the stream was closed");
+            matches = false;
+        }
+        return matches;
+    }
+
+    /**
+     * Fill the context with a random song matrix
+     *
+     * @param seed Seed of the song
+     * @param context Context to hold the matrix
+     * @return Columns of the matrix, as time steps to stream
+     */
+    private static float[][] generateSong(long seed, ConversionContext context) {
+        Random random = new Random(seed);
+        int rows = TRACK_COUNT * KEY_COUNT * 2;
+        float[][] steps = new float[STEPS][rows];
+        for (int row = 0; row < rows; row += 2) {
+            float[] activeRow = context.getRow(row, STEPS);
+            float[] startRow = context.getRow(row + 1, STEPS);
+            boolean active = false;
+            for (int step = 0; step < STEPS; step++) {
+                boolean start = random.nextInt(12) == 0;
+                active = start || (active && random.nextInt(4) != 0);
+                //Values either side of the threshold, not only 0 and 1
+                activeRow[step] = active ? 0.5f + random.nextFloat() / 2 : random.nextFloat() / 2;
+                startRow[step] = start ? 0.5f + random.nextFloat() / 2 : random.nextFloat() / 2;
+                steps[step][row] = activeRow[step];
+                steps[step][row + 1] = startRow[step];
+            }
+        }
+        context.rowCount = rows;
+        context.columnCount = STEPS;
+        return steps;
+    }
+
+    /**
+     *
+     * @param message Note message
+     * @param time Time of the message
+     * @param timePerStep Time in each step
+     * @return Command, key, velocity and step of the note
+     */
+    private static String describe(ShortMessage message, long time, long timePerStep) {
+        return message.getCommand() + ":" + message.getData1() + ":" + message.getData2() + "@"
+                + (time % timePerStep == 0 ? Long.toString(time / timePerStep) : time + "/" + timePerStep);
+    }
+}
@@ -0,0 +1,83 @@
+package com.garlick.midi_csv_convertor;
+
+import java.util.ArrayList;
+import javax.sound.midi.Track;
+
+/**
+ * Buffers reused between conversions by a single worker, so converting a
+ * folder of files does not allocate new matrices for every file. A song
+ * matrix created with a context is only valid until the next conversion
+ * using the same context.
+ *
+ * @author Sam Garlick
+ */
+public class ConversionContext {
+
+    //Reusable track matrices, one per track of the song
+    private final ArrayList<TrackMatrix> trackMatrices = new ArrayList<>();
+
+    //Reusable song matrix and list of non-empty tracks
+    private final SongMatrix songMatrix = new SongMatrix();
+    final ArrayList<Track> tracks = new ArrayList<>();
+
+    //Onsets of the song for finding duplicates, or null if not needed
+    OnsetSketch sketch = null;
+
+    /**
+     * Get a cleared track matrix for the given track, reusing the matrix
+     * from a previous conversion if there is one
+     *
+     * @param trackNumber Index of the track in the song
+     * @param width Width of the window
+     * @param height height/semi-tones in the track
+     * @param minimumSemiTone Minimum key
+     * @param maximumSemiTone Maximum key
+     * @param columnOffset First column of the song held in the window
+     * @param songWidth Length of the whole song
+     * @return Cleared track matrix
+     */
+    TrackMatrix getTrackMatrix(int trackNumber, int width, int height, int minimumSemiTone, int maximumSemiTone, int columnOffset, int songWidth) {
+        while (trackMatrices.size() <= trackNumber) {
+            trackMatrices.add(new TrackMatrix(0, 0, 0, 0));
+        }
+        TrackMatrix trackMatrix = trackMatrices.get(trackNumber);
+        trackMatrix.reset(width, height, minimumSemiTone, maximumSemiTone, columnOffset, songWidth);
+        return trackMatrix;
+    }
+
+    /**
+     * Drop the reusable track matrices if, once reset for the next song,
+     * they would hold more than the memory limit. Reused matrices only ever
+     * grow, so after a mix of long songs and songs with many tracks they
+     * could otherwise hold several times the limit between conversions
+     *
+     * @param trackCount Track matrices needed for the song
+     * @param rows Rows in each track matrix
+     * @param width Width of each track matrix
+     * @param memoryLimit Maximum bytes of heap for the track matrices, 0 for no limit
+     */
+    void fitTrackMatrices(int trackCount, int rows, int width, long memoryLimit) {
+        if (memoryLimit <= 0) {
+            return;
+        }
+        long retainedSize = (long) Math.max(trackCount - trackMatrices.size(), 0) * rows * width * Integer.BYTES;
+        for (int trackNumber = 0; trackNumber < trackMatrices.size(); trackNumber++) {
+            retainedSize += trackNumber < trackCount
+                    ? trackMatrices.get(trackNumber).getCapacity(rows, width)
+                    : trackMatrices.get(trackNumber).getCapacity(0, 0);
+        }
+        if (retainedSize > memoryLimit) {
+            songMatrix.clear();
+            trackMatrices.clear();
+        }
+    }
+
+    /**
+     *
+     * @return Cleared song matrix
+     */
+    SongMatrix getSongMatrix() {
+        songMatrix.clear();
+        return songMatrix;
+    }
+}
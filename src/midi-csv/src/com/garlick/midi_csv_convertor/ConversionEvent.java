@@ -0,0 +1,71 @@
+package com.garlick.midi_csv_convertor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event for converting a single MIDI file to CSV
+ *
+ * @author Sam Garlick
+ */
+@Name("com.garlick.midi_csv.Conversion")
+@Label("File Conversion")
+@Category({"MIDI Conversion", "MIDI-CSV"})
+@Description("Conversion of a MIDI file to a CSV song matrix")
+@StackTrace(false)
+public class ConversionEvent extends Event {
+
+    @Label("Input File")
+    String inputFile;
+
+    @Label("Rows")
+    int rows;
+
+    @Label("Columns")
+    int columns;
+
+    @Label("Input Size")
+    @DataAmount
+    long inputBytes;
+
+    @Label("Output Size")
+    @DataAmount
+    long outputBytes;
+
+    /**
+     * Create and begin timing a file conversion
+     *
+     * @param inputFile File being converted
+     * @return Started event
+     */
+    static ConversionEvent start(String inputFile) {
+        ConversionEvent event = new ConversionEvent();
+        event.inputFile = inputFile;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End the conversion and record it if flight recorder is enabled
+     *
+     * @param rows Rows in the song matrix
+     * @param columns Columns in the song matrix
+     * @param inputBytes Size of the input file
+     * @param outputBytes Size of the output file
+     */
+    void finish(int rows, int columns, long inputBytes, long outputBytes) {
+        end();
+        if (shouldCommit()) {
+            this.rows = rows;
+            this.columns = columns;
+            this.inputBytes = inputBytes;
+            this.outputBytes = outputBytes;
+            commit();
+        }
+    }
+}
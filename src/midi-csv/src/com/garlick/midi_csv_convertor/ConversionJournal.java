@@ -0,0 +1,120 @@
+package com.garlick.midi_csv_convertor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+
+/**
+ * Journal of the files converted in a folder run, or in a shard of a shared
+ * job. Completed files are appended to the journal and flushed every few
+ * files, so an interrupted run, or a worker taking over the shard of a
+ * crashed worker, can skip the files already converted.
+ *
+ * @author Sam Garlick
+ */
+public class ConversionJournal implements Closeable {
+
+    public static final String JOURNAL_NAME = ".midi-csv.journal";
+    public static final int CHECKPOINT_INTERVAL = 100;
+
+    //Journal file and the files it records as converted
+    private final Path journal;
+    private final HashSet<String> completed = new HashSet<>();
+    private final BufferedWriter writer;
+    private int pending = 0;
+
+    /**
+     * Open the journal in the given output folder, loading any files
+     * recorded by a previous run
+     *
+     * @param outputDir Folder the converted files are saved to
+     * @throws IOException
+     */
+    public ConversionJournal(Path outputDir) throws IOException {
+        this(outputDir, JOURNAL_NAME);
+    }
+
+    /**
+     * Open the journal with the given name, loading any files recorded by
+     * a previous run
+     *
+     * @param folder Folder holding the journal
+     * @param name File name of the journal
+     * @throws IOException
+     */
+    public ConversionJournal(Path folder, String name) throws IOException {
+        this.journal = folder.resolve(name);
+        if (Files.exists(this.journal)) {
+            try (BufferedReader br = new BufferedReader(new FileReader(this.journal.toFile()))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    completed.add(line);
+                }
+            }
+        }
+        this.writer = new BufferedWriter(new FileWriter(this.journal.toFile(), true));
+    }
+
+    /**
+     *
+     * @param file Relative path of the input file
+     * @return True if a previous run has converted the file
+     */
+    public boolean isComplete(String file) {
+        return completed.contains(file);
+    }
+
+    /**
+     * Record a file as converted, checkpointing the journal every
+     * CHECKPOINT_INTERVAL files
+     *
+     * @param file Relative path of the input file
+     * @throws IOException
+     */
+    public void markComplete(String file) throws IOException {
+        writer.write(file);
+        writer.write('\n');
+        if (++pending >= CHECKPOINT_INTERVAL) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Flush the recorded files to disk
+     *
+     * @throws IOException
+     */
+    public void checkpoint() throws IOException {
+        writer.flush();
+        pending = 0;
+    }
+
+    /**
+     *
+     * @return Quantity of files converted by previous runs
+     */
+    public int getResumedCount() {
+        return completed.size();
+    }
+
+    /**
+     * Close and remove the journal once every file has been converted
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        close();
+        Files.deleteIfExists(this.journal);
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,93 @@
+package com.garlick.midi_csv_convertor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Flight recorder event for a single stage of converting a MIDI file
+ *
+ * @author Sam Garlick
+ */
+@Name("com.garlick.midi_csv.ConversionStage")
+@Label("Conversion Stage")
+@Category({"MIDI Conversion", "MIDI-CSV"})
+@Description("A stage of converting a MIDI file to a song matrix")
+@StackTrace(false)
+public class ConversionStageEvent extends Event {
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Rows")
+    int rows;
+
+    @Label("Columns")
+    int columns;
+
+    @Label("Notes")
+    @Description("Notes started in the stage")
+    long notes;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    /**
+     * Create and begin timing a stage
+     *
+     * @param stage Name of the stage
+     * @return Started event
+     */
+    static ConversionStageEvent start(String stage) {
+        ConversionStageEvent event = new ConversionStageEvent();
+        event.stage = stage;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End the stage and record it if flight recorder is enabled
+     *
+     * @param rows Rows in the matrix
+     * @param columns Columns in the matrix
+     * @param notes Notes read from the MIDI file
+     * @param bytes Bytes read or written
+     */
+    void finish(int rows, int columns, long notes, long bytes) {
+        end();
+        if (shouldCommit()) {
+            this.rows = rows;
+            this.columns = columns;
+            this.notes = notes;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+
+    /**
+     * Count the notes started in a track, as recorded by stage events. Note
+     * on messages without a velocity turn notes off, so are not counted
+     *
+     * @param track MIDI track
+     * @return Quantity of note on messages with a velocity
+     */
+    static long countNotes(Track track) {
+        long notes = 0;
+        for (int i = 0; i < track.size(); i++) {
+            MidiMessage message = track.get(i).getMessage();
+            if (message instanceof ShortMessage && ((ShortMessage) message).getCommand() == Convertor.NOTE_ON
+                    && ((ShortMessage) message).getData2() > 0) {
+                notes++;
+            }
+        }
+        return notes;
+    }
+}
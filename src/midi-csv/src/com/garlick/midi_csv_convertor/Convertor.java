@@ -1,6 +1,8 @@
 package com.garlick.midi_csv_convertor;
 
 import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import javax.sound.midi.MidiEvent;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.MidiSystem;
@@ -30,7 +32,27 @@ public class Convertor {
      * @throws Exception 
      */
     public static SongMatrix createSongMatrix(String inputFile, float inputQuantisation, String minimumSemiToneString, String maximumSemiToneString) throws Exception{
-        SongMatrix sm = new SongMatrix();
+        return createSongMatrix(inputFile, inputQuantisation, minimumSemiToneString, maximumSemiToneString, 0, null, new ConversionContext());
+    }
+    
+    /**
+     * Parse the input file to create a song matrix of tracks between the ranges
+     * given, quantised to the quantise level given. If the song matrix would
+     * use more than the given memory limit it is built in chunks inside a
+     * memory-mapped file instead of on the heap
+     * 
+     * @param inputFile Path to the input file
+     * @param quantisation Quantity of ticks to quantise the data to
+     * @param minimumSemiToneString Minimum inclusive semi-tone
+     * @param maximumSemiToneString Maximum inclusive semi-tone
+     * @param memoryLimit Maximum bytes of heap for the song matrix, 0 for no limit
+     * @param cacheDir Folder of cached note indexes, or null to parse the MIDI file
+     * @param context Buffers reused between conversions
+     * @return Song Matrix, valid until the context is next used
+     * @throws Exception 
+     */
+    public static SongMatrix createSongMatrix(String inputFile, float inputQuantisation, String minimumSemiToneString, String maximumSemiToneString, long memoryLimit, Path cacheDir, ConversionContext context) throws Exception{
+        ConversionStageEvent event = ConversionStageEvent.start("createSongMatrix");
         
         //Calc the min, max semi tone as integer from input
         int minSemiTone = parseKeyString(minimumSemiToneString);
@@ -38,28 +60,156 @@ public class Convertor {
         int minimumSemiTone = Math.min(minSemiTone, maxSemiTone);
         int maximumSemiTone = Math.max(minSemiTone, maxSemiTone) + 1;
         
-        //Load midi data
-        Sequence sequence = MidiSystem.getSequence(new File(inputFile));
+        //Load midi data, either from the note index cache or the midi file
+        NoteIndex index = null;
+        Sequence sequence = null;
+        ArrayList<Track> tracks = context.tracks;
+        tracks.clear();
+        if (context.sketch != null) {
+            context.sketch.reset();
+        }
+        int resolution;
+        long tickLength;
+        if (cacheDir != null) {
+            index = NoteIndex.load(inputFile, cacheDir);
+            resolution = index.getResolution();
+            tickLength = index.getTrackLength();
+        } else {
+            sequence = MidiSystem.getSequence(new File(inputFile));
+            resolution = sequence.getResolution();
+            tickLength = getTrackLength(sequence.getTracks());
+            
+            //Find the tracks containing notes
+            for (Track track :  sequence.getTracks()) {
+                if (!isEmpty(track)){
+                    tracks.add(track);
+                }
+            }
+        }
+        int trackCount = index != null ? index.getTrackCount() : tracks.size();
         
-        int quantisation = (int)(sequence.getResolution() * inputQuantisation);
-        int trackLength = convertTickToQuantizedBeatUp(getTrackLength(sequence.getTracks()), quantisation);
+        int quantisation = (int)(resolution * inputQuantisation);
+        int trackLength = convertTickToQuantizedBeatUp(tickLength, quantisation);
         
         //Build track data
-        int trackNumber = 0;
+        SongMatrix sm;
         int outOfBoundsNotes = 0;
-        for (Track track :  sequence.getTracks()) {
-            if (!isEmpty(track)){
-                TrackMatrix trackMatrix = buildTrackMatrix(trackLength, minimumSemiTone, maximumSemiTone);
-                outOfBoundsNotes += parseTrack(track, trackMatrix, quantisation);
-                trackNumber++;
+        int trackRows = (maximumSemiTone - minimumSemiTone) * 2;
+        long projectedSize = (long) trackCount * trackRows * trackLength * Integer.BYTES;
+        if (memoryLimit > 0 && projectedSize > memoryLimit) {
+            int chunkWidth = getChunkWidth(trackCount, trackRows, trackLength, memoryLimit);
+            MappedSongMatrix mappedMatrix = new MappedSongMatrix(trackCount, trackRows, trackLength, chunkWidth);
+            context.fitTrackMatrices(1, trackRows, chunkWidth, memoryLimit);
+            System.out.println("Song matrix for '"+inputFile+"' (" + projectedSize + " bytes) exceeds memory limit, spilling to disk in chunks of " + chunkWidth + " columns.");
+            
+            //Parse the tracks once into note intervals, rather than once per chunk
+            if (index == null) {
+                index = NoteIndex.fromSequence(sequence);
+            }
+            outOfBoundsNotes = parseTracksInChunks(index, trackCount, mappedMatrix, trackLength, minimumSemiTone, maximumSemiTone, quantisation, chunkWidth, context);
+            sm = mappedMatrix;
+        } else {
+            context.fitTrackMatrices(trackCount, trackRows, trackLength, memoryLimit);
+            sm = context.getSongMatrix();
+            for (int trackNumber = 0; trackNumber < trackCount; trackNumber++) {
+                TrackMatrix trackMatrix = context.getTrackMatrix(trackNumber, trackLength, maximumSemiTone - minimumSemiTone, minimumSemiTone, maximumSemiTone, 0, trackLength);
+                outOfBoundsNotes += parseTrack(tracks, index, trackNumber, trackMatrix, quantisation);
                 sm.addTrack(trackMatrix);
+                if (context.sketch != null) {
+                    context.sketch.addTrack(trackMatrix);
+                }
             }
         }
-        System.out.println("Parsed '"+inputFile+ "' with " + trackNumber + " tracks. "+outOfBoundsNotes +" notes were found out of bounds ("+minimumSemiToneString+", "+maximumSemiToneString+")");
-
+        if (event.isEnabled()) {
+            long noteCount = 0;
+            for (int trackNumber = 0; trackNumber < trackCount; trackNumber++) {
+                noteCount += index != null ? index.getNoteCount(trackNumber) : ConversionStageEvent.countNotes(tracks.get(trackNumber));
+            }
+            event.finish(trackCount * trackRows, trackLength, noteCount, new File(inputFile).length());
+        }
+        tracks.clear();
+        System.out.println("Parsed '"+inputFile+ "' with " + trackCount + " tracks. "+outOfBoundsNotes +" notes were found out of bounds ("+minimumSemiToneString+", "+maximumSemiToneString+")");
         return sm;
     } 
+    
+    /**
+     * Calculate the columns in each chunk so a chunk of one track fits within
+     * the memory limit, and a chunk of every track fits in a single mapping
+     * 
+     * @param trackCount Tracks in the song
+     * @param trackRows Rows in each track matrix
+     * @param trackLength Length of the song
+     * @param memoryLimit Maximum bytes of heap for a single chunk
+     * @return Columns in each chunk
+     */
+    static int getChunkWidth(int trackCount, int trackRows, int trackLength, long memoryLimit) {
+        long chunkWidth = memoryLimit / ((long) Math.max(trackRows, 1) * Integer.BYTES);
+        chunkWidth = Math.min(chunkWidth, Integer.MAX_VALUE / ((long) Math.max(trackRows, 1) * Math.max(trackCount, 1)));
+        return (int) Math.max(1, Math.min(chunkWidth, trackLength));
+    }
+    
+    /**
+     * Rasterise each track one chunk of columns at a time, writing each chunk
+     * to the mapped song matrix before the next is built
+     * 
+     * @param index Note index of the song
+     * @param trackCount Quantity of tracks in the song
+     * @param sm Mapped song matrix to write to
+     * @param trackLength Length of the song
+     * @param lowerSemiTone Lowest note
+     * @param upperSemiTone Highest Note
+     * @param quantisation Quantisation level for track
+     * @param chunkWidth Columns in each chunk
+     * @param context Buffers reused between conversions
+     * @return Quantity of notes that fall outside of given track bounds
+     */
+    static int parseTracksInChunks(NoteIndex index, int trackCount, MappedSongMatrix sm, int trackLength, int lowerSemiTone, int upperSemiTone, int quantisation, int chunkWidth, ConversionContext context) {
+        int outOfBoundsNotes = 0;
+        for (int offset = 0; offset < trackLength; offset += chunkWidth) {
+            int width = Math.min(chunkWidth, trackLength - offset);
+            for (int trackNumber = 0; trackNumber < trackCount; trackNumber++) {
+                TrackMatrix trackMatrix = context.getTrackMatrix(0, width, upperSemiTone - lowerSemiTone, lowerSemiTone, upperSemiTone, offset, trackLength);
+                int removed = parseTrack(null, index, trackNumber, trackMatrix, quantisation);
+                
+                //Out of bounds notes are the same for every chunk, so only count them once
+                if (offset == 0) {
+                    outOfBoundsNotes += removed;
+                }
+                sm.addChunk(trackNumber, trackMatrix);
+                if (context.sketch != null) {
+                    context.sketch.addTrack(trackMatrix);
+                }
+            }
+        }
+        return outOfBoundsNotes;
+    }
         
+    /**
+     * Update the given track matrix from the note index if there is one,
+     * otherwise from the midi track
+     * 
+     * @param tracks Tracks in the song
+     * @param index Note index of the song, or null
+     * @param trackNumber Index of the track to parse
+     * @param trackMatrix Track matrix to update
+     * @param quantisation Quantisation level for track
+     * @return Quantity of notes that fall outside of given track bounds
+     */
+    private static int parseTrack(ArrayList<Track> tracks, NoteIndex index, int trackNumber, TrackMatrix trackMatrix, int quantisation){
+        ConversionStageEvent event = ConversionStageEvent.start("parseTrack");
+        int outOfBoundsNotes;
+        if (index != null) {
+            outOfBoundsNotes = index.rasterise(trackNumber, trackMatrix, quantisation);
+        } else {
+            outOfBoundsNotes = parseTrack(tracks.get(trackNumber), trackMatrix, quantisation);
+        }
+        if (event.isEnabled()) {
+            long noteCount = index != null ? index.getNoteCount(trackNumber) : ConversionStageEvent.countNotes(tracks.get(trackNumber));
+            event.finish(trackMatrix.getRowCount(), trackMatrix.getWidth(), noteCount, 0);
+        }
+        return outOfBoundsNotes;
+    }
+    
     /**
      * Parse a midi track and update the given track matrix
      * 
@@ -192,7 +342,7 @@ public class Convertor {
      * @param track Input track to check
      * @return Boolean stating if the track is empty
      */
-    private static boolean isEmpty(Track track){
+    static boolean isEmpty(Track track){
         boolean empty = true;
         for (int i=0; i < track.size(); i++) { 
             MidiEvent event = track.get(i);
@@ -0,0 +1,115 @@
+package com.garlick.midi_csv_convertor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Finds near-duplicate songs by locality sensitive hashing of their MinHash
+ * signatures. Each signature is split into bands and songs sharing a band
+ * are compared, so each song is only compared with likely duplicates rather
+ * than every song seen before.
+ *
+ * @author Sam Garlick
+ */
+public class DuplicateIndex {
+
+    //Bands of the signature; with 32 bands of 4 values, songs 70% similar
+    //almost always share a band while unrelated songs rarely do
+    public static final int BANDS = 32;
+    private static final int BAND_SIZE = OnsetSketch.SIGNATURE_SIZE / BANDS;
+
+    //Fraction of signature values two songs must share to be duplicates
+    public static final float DEFAULT_SIMILARITY = 0.7f;
+
+    //Songs kept so far and the songs in each band bucket
+    private final float similarity;
+    private final ArrayList<String> names = new ArrayList<>();
+    private final ArrayList<long[]> signatures = new ArrayList<>();
+    private final HashMap<Long, ArrayList<Integer>> buckets = new HashMap<>();
+
+    /**
+     * Create an empty index
+     *
+     * @param similarity Fraction of signature values two songs must share
+     */
+    public DuplicateIndex(float similarity) {
+        this.similarity = similarity;
+    }
+
+    /**
+     * Find the song most similar to the given signature, adding the
+     * signature to the index if it is not a duplicate
+     *
+     * @param name Name of the song
+     * @param signature MinHash signature of the song
+     * @return Name of the song it duplicates, or null if it is unique
+     */
+    public String findOrAdd(String name, long[] signature) {
+        long[] bandKeys = new long[BANDS];
+        int duplicate = -1;
+        float bestSimilarity = this.similarity;
+        for (int band = 0; band < BANDS; band++) {
+            bandKeys[band] = getBandKey(signature, band);
+            ArrayList<Integer> bucket = this.buckets.get(bandKeys[band]);
+            if (bucket == null) {
+                continue;
+            }
+            for (int song : bucket) {
+                float songSimilarity = getSimilarity(signature, this.signatures.get(song));
+                if (songSimilarity >= bestSimilarity) {
+                    bestSimilarity = songSimilarity;
+                    duplicate = song;
+                }
+            }
+        }
+        if (duplicate >= 0) {
+            return this.names.get(duplicate);
+        }
+
+        int song = this.names.size();
+        this.names.add(name);
+        this.signatures.add(signature);
+        for (int band = 0; band < BANDS; band++) {
+            this.buckets.computeIfAbsent(bandKeys[band], k -> new ArrayList<>()).add(song);
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @param a Signature of a song
+     * @param b Signature of another song
+     * @return Estimated Jaccard similarity of the songs' shingles
+     */
+    static float getSimilarity(long[] a, long[] b) {
+        int matches = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) {
+                matches++;
+            }
+        }
+        return (float) matches / a.length;
+    }
+
+    /**
+     *
+     * @param signature Signature of a song
+     * @param band Index of the band
+     * @return Hash of the band's values, distinct between bands
+     */
+    private static long getBandKey(long[] signature, int band) {
+        long key = band;
+        for (int i = band * BAND_SIZE; i < (band + 1) * BAND_SIZE; i++) {
+            key = OnsetSketch.mix(key ^ signature[i]);
+        }
+        return key;
+    }
+
+    /**
+     *
+     * @return Quantity of unique songs in the index
+     */
+    public int getSongCount() {
+        return this.names.size();
+    }
+}
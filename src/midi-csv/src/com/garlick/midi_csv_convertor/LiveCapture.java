@@ -0,0 +1,329 @@
+package com.garlick.midi_csv_convertor;
+
+import java.util.Arrays;
+import java.util.function.ObjLongConsumer;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import javax.sound.midi.Transmitter;
+
+/**
+ * Receiver which quantises live MIDI input into a circular track matrix
+ * holding the latest time steps. Notes are added to the matrix as they are
+ * played, using the same quantisation as TrackMatrix, so the window always
+ * holds the performance up to the current step.
+ *
+ * The window is stored column-major in a single array, each time step being
+ * a column of active and start rows for every semi-tone. No objects are
+ * allocated per event.
+ *
+ * @author Sam Garlick
+ */
+public class LiveCapture implements Receiver {
+
+    //Default MIDI tempo of 120 bpm
+    public static final long BEAT_MICROS = 500000;
+
+    //Semi-tone bounds and window size
+    private final int minimumSemiTone;
+    private final int maximumSemiTone;
+    private final int rows;
+    private final int capacity;
+    private final int stepMicros;
+
+    //Circular window of time steps, column-major
+    private final int[] window;
+
+    //Active notes per key, with the tick of the earliest active note
+    private final int[] activeCount = new int[128];
+    private final long[] startTime = new long[128];
+
+    //Time of the first event and the latest step written
+    private long origin = -1;
+    private long step = -1;
+    private int outOfBoundsNotes = 0;
+
+    /**
+     * Create a live capture
+     *
+     * @param minimumSemiTone Minimum key, inclusive
+     * @param maximumSemiTone Maximum key, exclusive
+     * @param capacity Time steps held in the window
+     * @param stepMicros Length of a time step in microseconds
+     */
+    public LiveCapture(int minimumSemiTone, int maximumSemiTone, int capacity, int stepMicros) {
+        this.minimumSemiTone = minimumSemiTone;
+        this.maximumSemiTone = maximumSemiTone;
+        this.rows = (maximumSemiTone - minimumSemiTone) * 2;
+        this.capacity = capacity;
+        this.stepMicros = stepMicros;
+        this.window = new int[this.rows * capacity];
+    }
+
+    /**
+     * Receive a MIDI message, quantising note on and off events into the window
+     *
+     * @param message MIDI message
+     * @param timeStamp Time of the message in microseconds, or -1 for now
+     */
+    @Override
+    public synchronized void send(MidiMessage message, long timeStamp) {
+        if (timeStamp < 0) {
+            timeStamp = System.nanoTime() / 1000;
+        }
+        if (this.origin < 0) {
+            this.origin = timeStamp;
+        }
+        long eventTick = timeStamp - this.origin;
+        advance(eventTick);
+
+        if (message instanceof ShortMessage) {
+            ShortMessage sm = (ShortMessage) message;
+            int key = sm.getData1();
+            //A note on with no velocity is a note off, as sent by most keyboards
+            if (sm.getCommand() == Convertor.NOTE_ON && sm.getData2() > 0) {
+                noteOn(key, eventTick);
+            } else if (sm.getCommand() == Convertor.NOTE_OFF || sm.getCommand() == Convertor.NOTE_ON) {
+                this.outOfBoundsNotes += noteOff(key, eventTick);
+            }
+        }
+    }
+
+    /**
+     * Start capturing at the given time. Otherwise capture starts at the
+     * first event received
+     *
+     * @param timeStamp Time of the first step in microseconds
+     */
+    public synchronized void start(long timeStamp) {
+        this.origin = timeStamp;
+    }
+
+    /**
+     * Move the window forward to the given time, so silence is captured even
+     * when no events arrive
+     *
+     * @param timeStamp Current time in microseconds
+     */
+    public synchronized void advanceTo(long timeStamp) {
+        if (this.origin >= 0) {
+            advance(timeStamp - this.origin);
+        }
+    }
+
+    /**
+     * Turn a key on, marking the start of the note in the current step. As
+     * with TrackMatrix, a key struck again while sounding stays active until
+     * every note of the key is turned off
+     *
+     * @param key The key to turn a note on
+     * @param eventTick The tick the note turn on
+     */
+    private void noteOn(int key, long eventTick) {
+        if (this.activeCount[key] == 0) {
+            this.startTime[key] = eventTick;
+        }
+        this.activeCount[key]++;
+
+        int relativeKey = key - this.minimumSemiTone;
+        if (inBounds(relativeKey)) {
+            int startPos = Convertor.convertTickToQuantizedBeatDown(eventTick, this.stepMicros);
+            set(startPos, relativeKey * 2 + 1);
+            set(startPos, relativeKey * 2);
+        }
+    }
+
+    /**
+     * Turn a key off, filling the note up to the step it ends in
+     *
+     * @param key Key to turn off
+     * @param eventTick Tick to turn note off
+     * @return 1 if note is out of semi-tone range
+     */
+    private int noteOff(int key, long eventTick) {
+        if (this.activeCount[key] == 0) {
+            return 0;
+        }
+        this.activeCount[key]--;
+
+        int relativeKey = key - this.minimumSemiTone;
+        if (!inBounds(relativeKey)) {
+            return 1;
+        }
+        int startPos = Convertor.convertTickToQuantizedBeatDown(this.startTime[key], this.stepMicros);
+        int endPos = Convertor.convertTickToQuantizedBeatUp(eventTick, this.stepMicros) - 1;
+        for (long i = Math.max(startPos, this.step - this.capacity + 1); i <= endPos; i++) {
+            set(i, relativeKey * 2);
+        }
+        
+        //A note ending on a step boundary does not sound in the current step
+        if (this.activeCount[key] == 0) {
+            for (long i = Math.max(endPos + 1, this.step - this.capacity + 1); i <= this.step; i++) {
+                this.window[column(i) + relativeKey * 2] = 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Advance the window to the step holding the given tick, clearing reused
+     * columns and continuing any notes still sounding
+     *
+     * @param eventTick Current tick
+     */
+    private void advance(long eventTick) {
+        long current = Convertor.convertTickToQuantizedBeatDown(eventTick, this.stepMicros);
+        long first = Math.max(this.step + 1, current - this.capacity + 1);
+        for (long s = first; s <= current; s++) {
+            int column = column(s);
+            Arrays.fill(this.window, column, column + this.rows, 0);
+            for (int relativeKey = 0; relativeKey < this.rows / 2; relativeKey++) {
+                if (this.activeCount[relativeKey + this.minimumSemiTone] > 0) {
+                    this.window[column + relativeKey * 2] = 1;
+                }
+            }
+        }
+        this.step = Math.max(this.step, current);
+    }
+
+    /**
+     * Set a value in the window if the step is still held
+     *
+     * @param step Time step
+     * @param row Row of the track matrix
+     */
+    private void set(long step, int row) {
+        if (step <= this.step && step > this.step - this.capacity) {
+            this.window[column(step) + row] = 1;
+        }
+    }
+
+    /**
+     *
+     * @param step Time step
+     * @return Offset of the step's column in the window
+     */
+    private int column(long step) {
+        return (int) (step % this.capacity) * this.rows;
+    }
+
+    /**
+     *
+     * @param relativeKey Key relative to the minimum semi-tone
+     * @return True if the key is within the semi-tone bounds
+     */
+    private boolean inBounds(int relativeKey) {
+        return relativeKey >= 0 && relativeKey < this.maximumSemiTone - this.minimumSemiTone;
+    }
+
+    /**
+     * Copy the window into the given array, oldest step first, without
+     * allocating
+     *
+     * @param destination Array of at least rows * capacity values
+     * @return Quantity of steps copied
+     */
+    public synchronized int copyWindow(int[] destination) {
+        int steps = (int) Math.min(this.step + 1, this.capacity);
+        long oldest = this.step - steps + 1;
+        for (int s = 0; s < steps; s++) {
+            System.arraycopy(this.window, column(oldest + s), destination, s * this.rows, this.rows);
+        }
+        return steps;
+    }
+
+    /**
+     * Build a track matrix of the window, oldest step first
+     *
+     * @return Track matrix of the captured steps
+     */
+    public synchronized TrackMatrix toTrackMatrix() {
+        int[] columns = new int[this.window.length];
+        int steps = copyWindow(columns);
+
+        TrackMatrix trackMatrix = new TrackMatrix(steps, this.rows / 2, this.minimumSemiTone, this.maximumSemiTone);
+        int[][] matrix = trackMatrix.getMatrix();
+        for (int s = 0; s < steps; s++) {
+            for (int row = 0; row < this.rows; row++) {
+                matrix[row][s] = columns[s * this.rows + row];
+            }
+        }
+        return trackMatrix;
+    }
+
+    /**
+     * Read the window itself without copying. Step s is held in the column
+     * starting at (s % capacity) * rows. The reader is called holding the
+     * capture's lock, so no events are added while it reads, and must not
+     * keep the window once it returns
+     *
+     * @param reader Reader of the circular window and the latest step
+     */
+    public synchronized void readWindow(ObjLongConsumer<int[]> reader) {
+        reader.accept(this.window, this.step);
+    }
+
+    /**
+     *
+     * @return Latest step written to the window, or -1 before any events
+     */
+    public synchronized long getStep() {
+        return this.step;
+    }
+
+    /**
+     *
+     * @return Rows in each time step
+     */
+    public int getRows() {
+        return this.rows;
+    }
+
+    /**
+     *
+     * @return Quantity of notes that fell outside of the semi-tone bounds
+     */
+    public synchronized int getOutOfBoundsNotes() {
+        return this.outOfBoundsNotes;
+    }
+
+    /**
+     * Take live input from a transmitter, such as a MIDI keyboard
+     *
+     * @param transmitter Transmitter to capture
+     */
+    public void attach(Transmitter transmitter) {
+        transmitter.setReceiver(this);
+    }
+
+    /**
+     * Replay a sequence to a receiver as if it were played live, timestamping
+     * each event at the default tempo. Useful for testing without a MIDI device
+     *
+     * @param sequence Sequence to replay
+     * @param receiver Receiver to send events to
+     * @throws InvalidMidiDataException
+     */
+    public static void replay(Sequence sequence, Receiver receiver) throws InvalidMidiDataException {
+        //Merge the tracks in time order
+        Track merged = new Sequence(sequence.getDivisionType(), sequence.getResolution()).createTrack();
+        for (Track track : sequence.getTracks()) {
+            for (int i = 0; i < track.size(); i++) {
+                merged.add(track.get(i));
+            }
+        }
+
+        for (int i = 0; i < merged.size(); i++) {
+            MidiEvent event = merged.get(i);
+            receiver.send(event.getMessage(), event.getTick() * BEAT_MICROS / sequence.getResolution());
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -1,12 +1,32 @@
 package com.garlick.midi_csv_convertor;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Transmitter;
 
 public class MIDIConvertor {
     
     public static final String MINIMUM_SEMI_TONE = "C0"; //Inclusive
     public static final String MAXIMUM_SEMI_TONE = "G#5"; //Inclusive
     public static final float DEFAULT_QUANTISATION = 0.25f;
+    public static final long DEFAULT_MEMORY_LIMIT = 0; //MB, 0 = no limit
+    public static final String DEFAULT_GLOB = "**.{mid,midi}";
+    public static final String CAPTURE_INPUT = "-";
+    public static final int DEFAULT_CAPTURE_STEPS = 1024;
+    public static final int DEFAULT_SHARD_COUNT = 64;
+    public static final String DUPLICATES_KEEP = "keep";
+    public static final String DUPLICATES_REPORT = "report";
+    public static final String DUPLICATES_SKIP = "skip";
     
     /**
      * Entry point
@@ -24,6 +44,7 @@ public class MIDIConvertor {
             String inputLocation = args[0];
             String outputLocation = args[1];
             String type = (new File(inputLocation)).isDirectory()? "folder" : "file";
+            if (inputLocation.equals(CAPTURE_INPUT)) {type = "capture";}
 
             String minimumSemiTone = MINIMUM_SEMI_TONE;
             String maximumSemiTone = MAXIMUM_SEMI_TONE;
@@ -33,6 +54,35 @@ public class MIDIConvertor {
             float quantisation = DEFAULT_QUANTISATION; 
             if (args.length > 4){quantisation = 1 / Float.parseFloat(args[4]);}
 
+            long memoryLimit = DEFAULT_MEMORY_LIMIT;
+            if (args.length > 5){memoryLimit = Long.parseLong(args[5]);}
+            memoryLimit *= 1024 * 1024;
+
+            String glob = DEFAULT_GLOB;
+            if (args.length > 6){glob = args[6];}
+
+            Path cacheDir = null;
+            if (args.length > 7 && !args[7].isEmpty()){cacheDir = Paths.get(args[7]);}
+
+            Path jobDir = null;
+            if (args.length > 8 && !args[8].isEmpty()){jobDir = Paths.get(args[8]);}
+
+            int shardCount = DEFAULT_SHARD_COUNT;
+            if (args.length > 9){shardCount = Integer.parseInt(args[9]);}
+            if (shardCount < 1) {
+                System.out.println("Shard count must be at least 1, not " + shardCount + ".");
+                printUsage();
+                return;
+            }
+
+            String duplicates = DUPLICATES_KEEP;
+            if (args.length > 10){duplicates = args[10];}
+            if (!duplicates.equals(DUPLICATES_KEEP) && !duplicates.equals(DUPLICATES_REPORT) && !duplicates.equals(DUPLICATES_SKIP)) {
+                System.out.println("Unknown near-duplicate mode '" + duplicates + "', please try '" + DUPLICATES_KEEP + "', '" + DUPLICATES_REPORT + "' or '" + DUPLICATES_SKIP + "'.");
+                printUsage();
+                return;
+            }
+
 
             //Output to user
             System.out.println("-- Converting " + type + ": '"+inputLocation+"'->'"+outputLocation+"'"
@@ -41,26 +91,42 @@ public class MIDIConvertor {
             //Convert
             switch (type) {
                 case "file":
-                    parseFile(inputLocation, outputLocation, minimumSemiTone, maximumSemiTone, quantisation);
+                    parseFile(inputLocation, outputLocation, minimumSemiTone, maximumSemiTone, quantisation, memoryLimit, cacheDir);
                     break;
                 case "folder":
-                    parseFolder(inputLocation, outputLocation, minimumSemiTone, maximumSemiTone, quantisation);
+                    parseFolder(inputLocation, outputLocation, minimumSemiTone, maximumSemiTone, quantisation, memoryLimit, glob, cacheDir, jobDir, shardCount, duplicates);
+                    break;
+                case "capture":
+                    parseCapture(outputLocation, minimumSemiTone, maximumSemiTone, quantisation);
                     break;
             }
         } else {
-            System.out.println("==================\n"
-                    + "Please enter the required arguments: \n"
-                    + "*Input File/Input Path (string)\n"
-                    + "*Output File/Output Path (string)\n"
-                    + "Minimum Semi-Tone Bound (int)\n"
-                    + "Maximum Semi-Tone Bound (int)\n"
-                    + "Quantisation Level (int)\n\n"
-                    + "For more information, please see: https://github.com/SamGarlick/A-Machine-Learning-Approach-To-Multi-Instrumental-Composition\n"
-                    + "==================");
+            printUsage();
         }
         
     }
     
+    /**
+     * Print the arguments of the convertor
+     */
+    private static void printUsage() {
+        System.out.println("==================\n"
+                + "Please enter the required arguments: \n"
+                + "*Input File/Input Path, or '-' to capture from a MIDI device (string)\n"
+                + "*Output File/Output Path (string)\n"
+                + "Minimum Semi-Tone Bound (int)\n"
+                + "Maximum Semi-Tone Bound (int)\n"
+                + "Quantisation Level (int)\n"
+                + "Memory Limit in MB before spilling to disk (int)\n"
+                + "Glob of files to convert in folders (string)\n"
+                + "Note index cache folder (string)\n"
+                + "Shared job folder to convert folders with several processes (string)\n"
+                + "Shards to split folders into between processes (int)\n"
+                + "Near-duplicate songs in folders to 'keep', 'report' or 'skip' (string)\n\n"
+                + "For more information, please see: https://github.com/SamGarlick/A-Machine-Learning-Approach-To-Multi-Instrumental-Composition\n"
+                + "==================");
+    }
+    
     
     /**
      * Convert given midi file
@@ -70,15 +136,17 @@ public class MIDIConvertor {
      * @param minimum Minimum key bound
      * @param maximum Maximum key bound
      * @param quantisation Quantisation Level
+     * @param memoryLimit Maximum bytes of heap for a song matrix
+     * @param cacheDir Note index cache folder, or null
      * @throws Exception 
      */
     private static void parseFile(String inputFile, String outputFile, 
                                 String minimum, String maximum,
-                                float quantisation) throws Exception {
+                                float quantisation, long memoryLimit,
+                                Path cacheDir) throws Exception {
         
         if (inputFile.endsWith(".midi") || inputFile.endsWith(".mid")) {
-            SongMatrix songMatrix = Convertor.createSongMatrix(inputFile, quantisation, minimum, maximum);
-            songMatrix.save(outputFile);
+            convertFile(inputFile, outputFile, minimum, maximum, quantisation, memoryLimit, cacheDir, null, false, new ConversionContext());
             
             System.out.println("-- Finished exporting "+outputFile+" --");
         } else {
@@ -87,44 +155,271 @@ public class MIDIConvertor {
     }
     
     /**
-     * Loop through and save all files in given input path to given output path
+     * Capture the default MIDI input device until enter is pressed, saving the
+     * latest steps played
+     * 
+     * @param outputFile Output path to save file to
+     * @param minimum Minimum key bound
+     * @param maximum Maximum key bound
+     * @param quantisation Quantisation Level
+     * @throws Exception 
+     */
+    private static void parseCapture(String outputFile, String minimum, String maximum,
+                                float quantisation) throws Exception {
+        
+        int minSemiTone = Convertor.parseKeyString(minimum);
+        int maxSemiTone = Convertor.parseKeyString(maximum);
+        LiveCapture capture = new LiveCapture(Math.min(minSemiTone, maxSemiTone), Math.max(minSemiTone, maxSemiTone) + 1,
+                DEFAULT_CAPTURE_STEPS, (int) (quantisation * LiveCapture.BEAT_MICROS));
+        
+        try (Transmitter transmitter = MidiSystem.getTransmitter()) {
+            capture.attach(transmitter);
+            System.out.println("-- Capturing, press enter to stop --");
+            System.in.read();
+        }
+        
+        SongMatrix songMatrix = new SongMatrix();
+        songMatrix.addTrack(capture.toTrackMatrix());
+        songMatrix.save(outputFile);
+        System.out.println("-- Finished exporting "+outputFile+" with "+capture.getOutOfBoundsNotes()+" notes out of bounds --");
+    }
+    
+    /**
+     * Convert a midi file and save the song matrix, recording the conversion
+     * as a flight recorder event. If an index of duplicates is given, songs
+     * which are near-duplicates of a song already converted are reported, and
+     * optionally not saved
+     * 
+     * @param inputFile Input path to read the midi file from
+     * @param outputFile Output path to save file to
+     * @param minimum Minimum key bound
+     * @param maximum Maximum key bound
+     * @param quantisation Quantisation Level
+     * @param memoryLimit Maximum bytes of heap for a song matrix
+     * @param cacheDir Note index cache folder, or null
+     * @param duplicates Index of songs converted so far, or null
+     * @param skipDuplicates Whether near-duplicates are not saved
+     * @param context Buffers reused between conversions
+     * @return True if the song matrix was saved
+     * @throws Exception 
+     */
+    private static boolean convertFile(String inputFile, String outputFile, 
+                                String minimum, String maximum,
+                                float quantisation, long memoryLimit,
+                                Path cacheDir, DuplicateIndex duplicates,
+                                boolean skipDuplicates, ConversionContext context) throws Exception {
+        
+        ConversionEvent event = ConversionEvent.start(inputFile);
+        SongMatrix songMatrix = Convertor.createSongMatrix(inputFile, quantisation, minimum, maximum, memoryLimit, cacheDir, context);
+        
+        //Check for near-duplicates before paying to save the song, songs with too few notes are not compared
+        long[] signature = duplicates != null ? context.sketch.getSignature() : null;
+        if (signature != null) {
+            String original = duplicates.findOrAdd(inputFile, signature);
+            if (original != null) {
+                System.out.println("'" + inputFile + "' is a near-duplicate of '" + original + "'" + (skipDuplicates ? ", skipping" : ""));
+                if (skipDuplicates) {
+                    songMatrix.clear();
+                    return false;
+                }
+            }
+        }
+        
+        songMatrix.save(outputFile);
+        if (event.isEnabled()) {
+            event.finish(songMatrix.getRowCount(), songMatrix.getColumnCount(), new File(inputFile).length(), new File(outputFile).length());
+        }
+        return true;
+    }
+    
+    /**
+     * Walk through the given input path and its sub-folders, saving every
+     * file matching the glob to the same relative location in the output path.
+     * Converted files are recorded in a journal so an interrupted run resumes
+     * where it stopped. If a job folder is given the files are instead split
+     * into shards, claimed through the job folder, so several processes can
+     * convert the folder at once. Each shard has its own journal in the job
+     * folder, so a process taking over the shard of a crashed process resumes
+     * where it stopped. Near-duplicate songs are found within each process
      * 
      * @param inputPath Input path to read midi files from
      * @param outputPath Output path to save files to
      * @param minimum Minimum key bound
      * @param maximum Maximum key bound
      * @param quantisation Quantisation Level
+     * @param memoryLimit Maximum bytes of heap for a song matrix
+     * @param glob Glob of input files to convert
+     * @param cacheDir Note index cache folder, or null
+     * @param jobDir Job folder shared between processes, or null
+     * @param shardCount Shards to split the files into
+     * @param duplicates Whether to 'keep', 'report' or 'skip' near-duplicates
      * @throws Exception 
      */
     private static void parseFolder(String inputPath, String outputPath, 
                                 String minimum, String maximum,
-                                float quantisation) throws Exception {
+                                float quantisation, long memoryLimit,
+                                String glob, Path cacheDir,
+                                Path jobDir, int shardCount,
+                                String duplicates) throws Exception {
         
-        File inpDir = new File(inputPath);
-        File outDir = new File(outputPath);
-        if (!outDir.exists()) {
-            System.out.println("Creating folder: " + outDir.getAbsolutePath());
-            outDir.mkdir();
+        Path inpDir = Paths.get(inputPath).toAbsolutePath();
+        Path outDir = Paths.get(outputPath).toAbsolutePath();
+        if (!Files.exists(outDir)) {
+            System.out.println("Creating folder: " + outDir);
+            Files.createDirectories(outDir);
         }
         
-        SongMatrix songMatrix;
-        songMatrix = null;
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        ConversionContext context = new ConversionContext();
         int convertedFiles = 0;
         
-        System.out.println("-- Parsing files in: " + inpDir.getAbsolutePath()+" --");
-        for (File f : inpDir.listFiles()) {
-            String filePath = f.getPath();
-            
-            //Check if valid file
-            if (filePath.endsWith(".midi") || filePath.endsWith(".mid")) {
-                String output = outDir.getAbsolutePath() + "/" + f.getName().split("\\.")[0] + ".csv";
-                //Convert and save
-                songMatrix = Convertor.createSongMatrix(filePath, quantisation, minimum, maximum);
-                songMatrix.save(output);
-                convertedFiles++;
+        DuplicateIndex duplicateIndex = null;
+        boolean skipDuplicates = duplicates.equals(DUPLICATES_SKIP);
+        if (skipDuplicates || duplicates.equals(DUPLICATES_REPORT)) {
+            duplicateIndex = new DuplicateIndex(DuplicateIndex.DEFAULT_SIMILARITY);
+            context.sketch = new OnsetSketch();
+        }
+        
+        System.out.println("-- Parsing files in: " + inpDir + " --");
+        if (jobDir == null) {
+            try (ConversionJournal journal = new ConversionJournal(outDir)) {
+                if (journal.getResumedCount() > 0) {
+                    System.out.println("-- Resuming, skipping " + journal.getResumedCount() + " converted files --");
+                }
+                try (Stream<Path> files = walkFiles(inpDir, matcher)) {
+                    convertedFiles = convertFiles(inpDir, outDir, files.iterator(), journal, minimum, maximum, quantisation, memoryLimit, cacheDir, duplicateIndex, skipDuplicates, context);
+                }
+                journal.finish();
+            }
+        } else {
+            try (WorkClaims claims = new WorkClaims(jobDir)) {
+                //Every worker must split the files into the same shards
+                claims.requireSetting("shards", Integer.toString(shardCount));
+                List<List<Path>> shards = listShards(inpDir, matcher, shardCount);
+                boolean waiting = true;
+                while (waiting) {
+                    waiting = false;
+                    boolean claimed = false;
+                    for (int shard = 0; shard < shardCount; shard++) {
+                        String unit = "shard-" + shard;
+                        if (claims.claim(unit)) {
+                            try (ConversionJournal journal = new ConversionJournal(jobDir, unit + ".journal")) {
+                                System.out.println("-- Converting shard " + shard + " of " + shardCount + ", skipping " + journal.getResumedCount() + " converted files --");
+                                convertedFiles += convertFiles(inpDir, outDir, shards.get(shard).iterator(), journal, minimum, maximum, quantisation, memoryLimit, cacheDir, duplicateIndex, skipDuplicates, context);
+                                claims.complete(unit);
+                                journal.finish();
+                            }
+                            claimed = true;
+                        } else if (!claims.isDone(unit)) {
+                            waiting = true;
+                        }
+                    }
+                    
+                    //Wait for the shards claimed by other processes to finish or expire
+                    if (waiting && !claimed) {
+                        Thread.sleep(WorkClaims.POLL_MILLIS);
+                    }
+                }
             }
         }
         System.out.println("-- Finished exporting "+convertedFiles+" files --");
         
     }
+    
+    /**
+     * Walk through the input path and its sub-folders once, splitting the
+     * files matching the glob into shards by the hash of their relative path,
+     * so every process puts each file in the same shard
+     * 
+     * @param inpDir Input path to read midi files from
+     * @param matcher Matcher of input files to convert
+     * @param shardCount Shards to split the files into
+     * @return Relative paths of the files in each shard
+     * @throws IOException 
+     */
+    private static List<List<Path>> listShards(Path inpDir, PathMatcher matcher, int shardCount) throws IOException {
+        List<List<Path>> shards = new ArrayList<>();
+        for (int shard = 0; shard < shardCount; shard++) {
+            shards.add(new ArrayList<>());
+        }
+        try (Stream<Path> files = walkFiles(inpDir, matcher)) {
+            Iterator<Path> it = files.iterator();
+            while (it.hasNext()) {
+                Path relativePath = it.next();
+                shards.get(Math.floorMod(getFileKey(relativePath).hashCode(), shardCount)).add(relativePath);
+            }
+        }
+        return shards;
+    }
+    
+    /**
+     * Lazily walk through the input path and its sub-folders, so files are
+     * converted as they are found
+     * 
+     * @param inpDir Input path to read midi files from
+     * @param matcher Matcher of input files to convert
+     * @return Relative paths of the files matching the glob, to be closed
+     * @throws IOException 
+     */
+    private static Stream<Path> walkFiles(Path inpDir, PathMatcher matcher) throws IOException {
+        return Files.walk(inpDir)
+                .filter(f -> Files.isRegularFile(f) && matcher.matches(inpDir.relativize(f)))
+                .map(inpDir::relativize);
+    }
+    
+    /**
+     *
+     * @param relativePath Path of a file relative to the input path
+     * @return Name of the file in journals, the same on every platform
+     */
+    private static String getFileKey(Path relativePath) {
+        return relativePath.toString().replace(File.separatorChar, '/');
+    }
+    
+    /**
+     * Convert the given files of the input path which have not been journaled
+     * 
+     * @param inpDir Input path to read midi files from
+     * @param outDir Output path to save files to
+     * @param files Paths of the files relative to the input path
+     * @param journal Journal of converted files
+     * @param minimum Minimum key bound
+     * @param maximum Maximum key bound
+     * @param quantisation Quantisation Level
+     * @param memoryLimit Maximum bytes of heap for a song matrix
+     * @param cacheDir Note index cache folder, or null
+     * @param duplicates Index of songs converted so far, or null
+     * @param skipDuplicates Whether near-duplicates are not saved
+     * @param context Buffers reused between conversions
+     * @return Quantity of files converted
+     * @throws Exception 
+     */
+    private static int convertFiles(Path inpDir, Path outDir, Iterator<Path> files,
+                                ConversionJournal journal,
+                                String minimum, String maximum,
+                                float quantisation, long memoryLimit,
+                                Path cacheDir, DuplicateIndex duplicates,
+                                boolean skipDuplicates, ConversionContext context) throws Exception {
+        
+        int convertedFiles = 0;
+        while (files.hasNext()) {
+            Path relativePath = files.next();
+            String key = getFileKey(relativePath);
+            if (journal.isComplete(key)) {
+                continue;
+            }
+            
+            Path f = inpDir.resolve(relativePath);
+            Path outFolder = outDir.resolve(relativePath).getParent();
+            Files.createDirectories(outFolder);
+            String output = outFolder.resolve(f.getFileName().toString().split("\\.")[0] + ".csv").toString();
+            
+            //Convert and save
+            if (convertFile(f.toString(), output, minimum, maximum, quantisation, memoryLimit, cacheDir, duplicates, skipDuplicates, context)) {
+                convertedFiles++;
+            }
+            journal.markComplete(key);
+        }
+        return convertedFiles;
+    }
 }
@@ -0,0 +1,169 @@
+package com.garlick.midi_csv_convertor;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Song matrix which is held in a temporary memory-mapped file rather than
+ * on the heap. Tracks may be written in chunks of columns so only a single
+ * chunk of a single track needs to be in memory at once, or whole like any
+ * other song matrix.
+ *
+ * @author Sam Garlick
+ */
+public class MappedSongMatrix extends SongMatrix {
+
+    //Layout of the song
+    private final int trackRows;
+    private final int trackCount;
+    private final int songWidth;
+    private final int chunkWidth;
+
+    //Backing file, each chunk is stored as a block of rows * chunk width bytes
+    private final Path file;
+    private final MappedByteBuffer[] chunks;
+    private int addedTracks = 0;
+
+    /**
+     * Create a mapped song matrix
+     *
+     * @param trackCount Quantity of tracks in the song
+     * @param trackRows Rows in each track matrix
+     * @param songWidth Length of the song
+     * @param chunkWidth Columns written to the file at once
+     * @throws IOException
+     */
+    public MappedSongMatrix(int trackCount, int trackRows, int songWidth, int chunkWidth) throws IOException {
+        this.trackCount = trackCount;
+        this.trackRows = trackRows;
+        this.songWidth = songWidth;
+        this.chunkWidth = Math.max(1, chunkWidth);
+
+        int chunkCount = (songWidth + this.chunkWidth - 1) / this.chunkWidth;
+        this.chunks = new MappedByteBuffer[chunkCount];
+        this.file = Files.createTempFile("midi-csv", ".matrix");
+        this.file.toFile().deleteOnExit();
+
+        try (RandomAccessFile raf = new RandomAccessFile(this.file.toFile(), "rw");
+             FileChannel channel = raf.getChannel()) {
+            long rows = (long) trackCount * trackRows;
+            for (int c = 0; c < chunkCount; c++) {
+                long position = (long) c * this.chunkWidth * rows;
+                chunks[c] = channel.map(FileChannel.MapMode.READ_WRITE, position, rows * getChunkWidth(c));
+            }
+        }
+    }
+
+    /**
+     * Append a track matrix to the mapped file
+     *
+     * @param matrix New Track matrix
+     */
+    @Override
+    public void addTrack(TrackMatrix matrix) {
+        addChunk(this.addedTracks, matrix);
+    }
+
+    /**
+     * Write a window of a track into the mapped file. The window may span
+     * several chunks
+     *
+     * @param trackNumber Index of the track in the song
+     * @param matrix Track matrix holding a window of the track
+     */
+    public void addChunk(int trackNumber, TrackMatrix matrix) {
+        if (trackNumber >= this.trackCount || matrix.getRowCount() != this.trackRows
+                || matrix.getColumnOffset() + matrix.getWidth() > this.songWidth) {
+            throw new IllegalArgumentException("Track " + trackNumber + " of " + matrix.getRowCount() + " rows by "
+                    + matrix.getWidth() + " columns does not fit a song of " + this.trackCount + " tracks of "
+                    + this.trackRows + " rows by " + this.songWidth + " columns");
+        }
+
+        int[][] rows = matrix.getMatrix();
+        int col = 0;
+        while (col < matrix.getWidth()) {
+            int songColumn = matrix.getColumnOffset() + col;
+            int chunk = songColumn / this.chunkWidth;
+            int chunkColumn = songColumn - chunk * this.chunkWidth;
+            int width = getChunkWidth(chunk);
+            int columns = Math.min(width - chunkColumn, matrix.getWidth() - col);
+            MappedByteBuffer buffer = this.chunks[chunk];
+
+            for (int row = 0; row < this.trackRows; row++) {
+                int position = (trackNumber * this.trackRows + row) * width + chunkColumn;
+                for (int c = 0; c < columns; c++) {
+                    buffer.put(position + c, (byte) rows[row][col + c]);
+                }
+            }
+            col += columns;
+        }
+        this.addedTracks = Math.max(this.addedTracks, trackNumber + 1);
+    }
+
+    /**
+     * Stream the mapped song matrix to a CSV file and remove the backing file
+     *
+     * @param filename File location to save to
+     * @throws IOException
+     */
+    @Override
+    protected void writeCsv(String filename) throws IOException {
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(filename))) {
+            int rows = this.trackCount * this.trackRows;
+            for (int row = 0; row < rows; row++) {
+                if (row > 0) {
+                    bw.write('\n');
+                }
+                for (int chunk = 0; chunk < this.chunks.length; chunk++) {
+                    int width = getChunkWidth(chunk);
+                    int position = row * width;
+                    for (int col = 0; col < width; col++) {
+                        if (chunk > 0 || col > 0) {
+                            bw.write(", ");
+                        }
+                        bw.write('0' + this.chunks[chunk].get(position + col));
+                    }
+                }
+            }
+        } finally {
+            Files.deleteIfExists(this.file);
+        }
+    }
+
+    /**
+     * Remove the backing file of a song matrix which will not be saved
+     */
+    @Override
+    public void clear() {
+        try {
+            Files.deleteIfExists(this.file);
+        } catch (IOException e) {
+            System.out.println("Unable to remove " + this.file + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return this.trackCount * this.trackRows;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return this.songWidth;
+    }
+
+    /**
+     *
+     * @param chunk Chunk index
+     * @return Columns held by the given chunk
+     */
+    private int getChunkWidth(int chunk) {
+        return Math.min(this.chunkWidth, this.songWidth - chunk * this.chunkWidth);
+    }
+}
@@ -0,0 +1,325 @@
+package com.garlick.midi_csv_convertor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Compact index of the note intervals in each track of a MIDI file. The
+ * intervals are stored in ticks, so a single index can be rasterised at any
+ * quantisation or semi-tone range. Indexes are cached in a folder keyed by
+ * the hash of the MIDI file, so later conversions skip parsing the MIDI file.
+ *
+ * @author Sam Garlick
+ */
+public class NoteIndex {
+
+    //Cache file format
+    private static final int MAGIC = 0x4E494458; //NIDX
+    private static final int VERSION = 2;
+    private static final String EXTENSION = ".nidx";
+
+    //Bytes of the header, of the header of each track and of each note
+    private static final int HEADER_BYTES = 4 * Integer.BYTES + Long.BYTES;
+    private static final int TRACK_HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int NOTE_BYTES = Integer.BYTES + 2 * Long.BYTES;
+
+    //End tick of a note which was never turned off
+    static final long OPEN_NOTE = -1;
+
+    //Song information
+    private final int resolution;
+    private final long trackLength;
+
+    //Note intervals for each non-empty track
+    private final int[][] keys;
+    private final long[][] starts;
+    private final long[][] ends;
+
+    //Note on messages with a velocity in each track, which may differ from
+    //the intervals when notes overlap on a key
+    private final int[] noteCounts;
+
+    /**
+     * Create a note index
+     *
+     * @param resolution Ticks per beat of the song
+     * @param trackLength Length of the longest track in ticks
+     * @param keys Key of each note, per track
+     * @param starts Start tick of each note, per track
+     * @param ends End tick of each note, or OPEN_NOTE, per track
+     * @param noteCounts Note on messages with a velocity, per track
+     */
+    NoteIndex(int resolution, long trackLength, int[][] keys, long[][] starts, long[][] ends, int[] noteCounts) {
+        this.resolution = resolution;
+        this.trackLength = trackLength;
+        this.keys = keys;
+        this.starts = starts;
+        this.ends = ends;
+        this.noteCounts = noteCounts;
+    }
+
+    /**
+     * Load the note index for a MIDI file from the cache folder, parsing the
+     * MIDI file and caching the result if it has not been indexed before
+     *
+     * @param inputFile Path to the MIDI file
+     * @param cacheDir Folder holding cached indexes
+     * @return Note index for the file
+     * @throws Exception
+     */
+    public static NoteIndex load(String inputFile, Path cacheDir) throws Exception {
+        Path cacheFile = cacheDir.resolve(hashFile(new File(inputFile).toPath()) + EXTENSION);
+        if (Files.exists(cacheFile)) {
+            NoteIndex index = read(cacheFile);
+            if (index != null) {
+                return index;
+            }
+        }
+
+        NoteIndex index = fromSequence(MidiSystem.getSequence(new File(inputFile)));
+        Files.createDirectories(cacheDir);
+        index.write(cacheFile);
+        return index;
+    }
+
+    /**
+     * Build a note index from a sequence, pairing note on and off events the
+     * same way as TrackMatrix
+     *
+     * @param sequence MIDI sequence
+     * @return Note index for the sequence
+     */
+    public static NoteIndex fromSequence(Sequence sequence) {
+        ArrayList<Track> tracks = new ArrayList<>();
+        for (Track track : sequence.getTracks()) {
+            if (!Convertor.isEmpty(track)) {
+                tracks.add(track);
+            }
+        }
+
+        int[][] keys = new int[tracks.size()][];
+        long[][] starts = new long[tracks.size()][];
+        long[][] ends = new long[tracks.size()][];
+        int[] noteCounts = new int[tracks.size()];
+        for (int t = 0; t < tracks.size(); t++) {
+            Track track = tracks.get(t);
+            noteCounts[t] = (int) ConversionStageEvent.countNotes(track);
+
+            //Active notes and completed intervals of the track
+            ArrayList<long[]> activeNotes = new ArrayList<>();
+            ArrayList<long[]> notes = new ArrayList<>();
+            for (int i = 0; i < track.size(); i++) {
+                MidiEvent event = track.get(i);
+                MidiMessage message = event.getMessage();
+                if (message instanceof ShortMessage) {
+                    ShortMessage sm = (ShortMessage) message;
+                    int key = sm.getData1();
+                    if (sm.getCommand() == Convertor.NOTE_ON) {
+                        activeNotes.add(new long[]{key, event.getTick()});
+                    } else if (sm.getCommand() == Convertor.NOTE_OFF) {
+                        long[] activatedNote = null;
+                        for (long[] an : activeNotes) {
+                            if (an[0] == key) {
+                                notes.add(new long[]{key, an[1], event.getTick()});
+                                activatedNote = an;
+                            }
+                        }
+                        if (activatedNote != null) {
+                            activeNotes.remove(activatedNote);
+                        }
+                    }
+                }
+            }
+            for (long[] an : activeNotes) {
+                notes.add(new long[]{an[0], an[1], OPEN_NOTE});
+            }
+
+            keys[t] = new int[notes.size()];
+            starts[t] = new long[notes.size()];
+            ends[t] = new long[notes.size()];
+            for (int n = 0; n < notes.size(); n++) {
+                keys[t][n] = (int) notes.get(n)[0];
+                starts[t][n] = notes.get(n)[1];
+                ends[t][n] = notes.get(n)[2];
+            }
+        }
+
+        return new NoteIndex(sequence.getResolution(), Convertor.getTrackLength(sequence.getTracks()), keys, starts, ends, noteCounts);
+    }
+
+    /**
+     * Add the notes of a track to the given track matrix
+     *
+     * @param trackNumber Index of the track
+     * @param trackMatrix Track matrix to update
+     * @param quantisation Quantisation level for track
+     * @return Quantity of notes that fall outside of given track bounds
+     */
+    public int rasterise(int trackNumber, TrackMatrix trackMatrix, int quantisation) {
+        int outOfBoundsNotes = 0;
+        int[] trackKeys = this.keys[trackNumber];
+        long[] trackStarts = this.starts[trackNumber];
+        long[] trackEnds = this.ends[trackNumber];
+        for (int n = 0; n < trackKeys.length; n++) {
+            if (trackEnds[n] == OPEN_NOTE) {
+                trackMatrix.addOpenNote(trackKeys[n], trackStarts[n], quantisation);
+            } else {
+                outOfBoundsNotes += trackMatrix.addNote(trackKeys[n], trackStarts[n], trackEnds[n], quantisation);
+            }
+        }
+        return outOfBoundsNotes;
+    }
+
+    /**
+     * Read a cached index with a single memory-mapped read
+     *
+     * @param cacheFile Cached index location
+     * @return Note index, or null if the cache file is not a valid index
+     * @throws IOException
+     */
+    static NoteIndex read(Path cacheFile) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(cacheFile.toFile(), "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+
+            int resolution = buffer.getInt();
+            long trackLength = buffer.getLong();
+            int trackCount = buffer.getInt();
+            if (trackCount < 0 || (long) trackCount * TRACK_HEADER_BYTES > buffer.remaining()) {
+                return null;
+            }
+            int[][] keys = new int[trackCount][];
+            long[][] starts = new long[trackCount][];
+            long[][] ends = new long[trackCount][];
+            int[] noteCounts = new int[trackCount];
+            for (int t = 0; t < trackCount; t++) {
+                //Check the interval count before allocating, so a corrupt count is a cache miss
+                int noteCount = buffer.getInt();
+                noteCounts[t] = buffer.getInt();
+                if (noteCount < 0 || noteCounts[t] < 0 || (long) noteCount * NOTE_BYTES > buffer.remaining()) {
+                    return null;
+                }
+                keys[t] = new int[noteCount];
+                starts[t] = new long[noteCount];
+                ends[t] = new long[noteCount];
+
+                buffer.asIntBuffer().get(keys[t]);
+                buffer.position(buffer.position() + noteCount * Integer.BYTES);
+                buffer.asLongBuffer().get(starts[t]);
+                buffer.position(buffer.position() + noteCount * Long.BYTES);
+                buffer.asLongBuffer().get(ends[t]);
+                buffer.position(buffer.position() + noteCount * Long.BYTES);
+            }
+            return new NoteIndex(resolution, trackLength, keys, starts, ends, noteCounts);
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            //Truncated or corrupt cache file
+            return null;
+        }
+    }
+
+    /**
+     * Write the index to a cache file. The index is written to a temporary
+     * file first so a partially written index is never read
+     *
+     * @param cacheFile Cached index location
+     * @throws IOException
+     */
+    void write(Path cacheFile) throws IOException {
+        int size = HEADER_BYTES;
+        for (int[] trackKeys : this.keys) {
+            size += TRACK_HEADER_BYTES + trackKeys.length * NOTE_BYTES;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(this.resolution).putLong(this.trackLength).putInt(this.keys.length);
+        for (int t = 0; t < this.keys.length; t++) {
+            buffer.putInt(this.keys[t].length).putInt(this.noteCounts[t]);
+            buffer.asIntBuffer().put(this.keys[t]);
+            buffer.position(buffer.position() + this.keys[t].length * Integer.BYTES);
+            buffer.asLongBuffer().put(this.starts[t]);
+            buffer.position(buffer.position() + this.starts[t].length * Long.BYTES);
+            buffer.asLongBuffer().put(this.ends[t]);
+            buffer.position(buffer.position() + this.ends[t].length * Long.BYTES);
+        }
+
+        Path tempFile = Files.createTempFile(cacheFile.getParent(), cacheFile.getFileName().toString(), ".tmp");
+        Files.write(tempFile, buffer.array());
+        Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Hash the contents of a file
+     *
+     * @param file File to hash
+     * @return Hex SHA-1 of the file
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    static String hashFile(Path file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r");
+             FileChannel channel = raf.getChannel()) {
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+    /**
+     *
+     * @return Ticks per beat of the song
+     */
+    public int getResolution() {
+        return this.resolution;
+    }
+
+    /**
+     *
+     * @return Length of the longest track in ticks
+     */
+    public long getTrackLength() {
+        return this.trackLength;
+    }
+
+    /**
+     *
+     * @param trackNumber Index of the track
+     * @return Quantity of note on messages with a velocity in the track, as
+     * recorded by stage events
+     */
+    public int getNoteCount(int trackNumber) {
+        return this.noteCounts[trackNumber];
+    }
+
+    /**
+     *
+     * @return Quantity of non-empty tracks
+     */
+    public int getTrackCount() {
+        return this.keys.length;
+    }
+}
@@ -0,0 +1,119 @@
+package com.garlick.midi_csv_convertor;
+
+import java.util.Arrays;
+
+/**
+ * Collects the note onsets of a song from the start rows of its track
+ * matrices and summarises them as a MinHash signature. Onsets from every
+ * track are merged, so songs with their tracks reordered have the same
+ * signature, and positions are in quantised beats, so changes of tempo or
+ * resolution do not alter it. Songs with too few onsets to tell apart have
+ * no signature and are never compared.
+ *
+ * @author Sam Garlick
+ */
+public class OnsetSketch {
+
+    //Size of the signature and onsets in each shingle
+    public static final int SIGNATURE_SIZE = 128;
+    private static final int SHINGLE_SIZE = 3;
+
+    //Shingles a song needs to be compared, with fewer a single changed
+    //onset alters too much of the signature for the similarity to mean much
+    public static final int MINIMUM_SHINGLES = 8;
+
+    //Seeds of the hash functions, one per value of the signature
+    private static final long[] SEEDS = new long[SIGNATURE_SIZE];
+    static {
+        long seed = 0x4D494449L;
+        for (int i = 0; i < SIGNATURE_SIZE; i++) {
+            seed = mix(seed + 0x9E3779B97F4A7C15L);
+            SEEDS[i] = seed;
+        }
+    }
+
+    //Onsets of the song, each packed as column << 8 | key
+    private long[] onsets = new long[1024];
+    private int onsetCount = 0;
+
+    /**
+     * Clear the onsets for the next song
+     */
+    public void reset() {
+        this.onsetCount = 0;
+    }
+
+    /**
+     * Add the onsets held in a track matrix, or a chunk of one
+     *
+     * @param trackMatrix Track matrix to read start rows from
+     */
+    public void addTrack(TrackMatrix trackMatrix) {
+        int[][] matrix = trackMatrix.getMatrix();
+        int width = trackMatrix.getWidth();
+        long columnOffset = trackMatrix.getColumnOffset();
+        for (int key = 0; key < trackMatrix.getRowCount() / 2; key++) {
+            int[] startRow = matrix[key * 2 + 1];
+            for (int column = 0; column < width; column++) {
+                if (startRow[column] != 0) {
+                    if (this.onsetCount == this.onsets.length) {
+                        this.onsets = Arrays.copyOf(this.onsets, this.onsets.length * 2);
+                    }
+                    this.onsets[this.onsetCount++] = (columnOffset + column) << 8 | key;
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculate the MinHash signature of the onsets. Each shingle is a run
+     * of consecutive onsets, relative to the first onset of the run, so the
+     * signature does not change if the song is shifted in time
+     *
+     * @return Signature of SIGNATURE_SIZE values, or null if the song has
+     * fewer than MINIMUM_SHINGLES shingles and is not comparable
+     */
+    public long[] getSignature() {
+        //Order the onsets in time and remove those shared between tracks
+        Arrays.sort(this.onsets, 0, this.onsetCount);
+        int unique = 0;
+        for (int i = 0; i < this.onsetCount; i++) {
+            if (unique == 0 || this.onsets[i] != this.onsets[unique - 1]) {
+                this.onsets[unique++] = this.onsets[i];
+            }
+        }
+        this.onsetCount = unique;
+
+        int shingleCount = unique - SHINGLE_SIZE + 1;
+        if (shingleCount < MINIMUM_SHINGLES) {
+            return null;
+        }
+
+        long[] signature = new long[SIGNATURE_SIZE];
+        Arrays.fill(signature, Long.MAX_VALUE);
+        for (int s = 0; s < shingleCount; s++) {
+            long firstColumn = this.onsets[s] >>> 8;
+            long shingle = 0;
+            for (int i = s; i < s + SHINGLE_SIZE; i++) {
+                long onset = (this.onsets[i] >>> 8) - firstColumn << 8 | (this.onsets[i] & 0xFF);
+                shingle = mix(shingle ^ onset);
+            }
+            for (int h = 0; h < SIGNATURE_SIZE; h++) {
+                signature[h] = Math.min(signature[h], mix(shingle ^ SEEDS[h]));
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Scramble the bits of a value
+     *
+     * @param value Value to hash
+     * @return Hash of the value
+     */
+    static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
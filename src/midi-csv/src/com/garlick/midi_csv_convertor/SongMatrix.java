@@ -1,13 +1,19 @@
 package com.garlick.midi_csv_convertor;
 
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Arrays;
 
 
 public class SongMatrix {
     
-    //Song matrix created 
-    int[][] songMatrix = null;
+    //Rows of the song matrix created, the rows may be longer than the song
+    //when track matrices are reused
+    int[][] songMatrix = new int[0][];
+    private int rowCount = 0;
+    private int columnCount = 0;
     
     /**
      * Append a track matrix to the created song matrix
@@ -15,19 +21,22 @@ public class SongMatrix {
      * @param matrix New Track matrix
      */
     public void addTrack(TrackMatrix matrix){
-        if (songMatrix == null ){
-            songMatrix = matrix.getMatrix();
-        } else {
-            int[][] newSongMatrix = new int[songMatrix.length + matrix.getMatrix().length][songMatrix[0].length];
-            
-            for (int i = 0; i < songMatrix.length; i++){
-                newSongMatrix[i] = songMatrix[i];
-            }
-            for (int i = 0; i < matrix.getMatrix().length; i++){
-                newSongMatrix[songMatrix.length + i] = matrix.getMatrix()[i];
-            }
-            songMatrix = newSongMatrix;
+        int trackRows = matrix.getRowCount();
+        if (rowCount + trackRows > songMatrix.length) {
+            songMatrix = Arrays.copyOf(songMatrix, Math.max(rowCount + trackRows, songMatrix.length * 2));
         }
+        System.arraycopy(matrix.getMatrix(), 0, songMatrix, rowCount, trackRows);
+        rowCount += trackRows;
+        columnCount = matrix.getWidth();
+    }
+    
+    /**
+     * Remove all tracks so the song matrix can be reused
+     */
+    public void clear() {
+        Arrays.fill(songMatrix, 0, rowCount, null);
+        rowCount = 0;
+        columnCount = 0;
     }
 
     
@@ -38,31 +47,64 @@ public class SongMatrix {
      * @throws IOException 
      */
     public void save(String filename) throws IOException {        
-        try (FileWriter fw = new FileWriter(filename)) {
-            fw.write(toCsv());
+        ConversionStageEvent event = ConversionStageEvent.start("save");
+        writeCsv(filename);
+        if (event.isEnabled()) {
+            event.finish(getRowCount(), getColumnCount(), 0, new File(filename).length());
         }
     }
     
     /**
-     * Convert song matrix to CSV string
+     * Write the song matrix to a CSV file, one row at a time
      * 
-     * @return CSV
+     * @param filename File location to save to
+     * @throws IOException 
      */
-    private String toCsv(){
-        String csv = "";
-        for (int[] row : this.songMatrix){
-            if (csv.length()>0){
-                csv += "\n";
-            }
-            String currentRow = "";
-            for (int col : row){
-                if (currentRow.length() > 0){
-                    currentRow += ", ";
+    protected void writeCsv(String filename) throws IOException {
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(filename))) {
+            for (int row = 0; row < rowCount; row++){
+                if (row > 0){
+                    bw.write('\n');
+                }
+                int[] values = songMatrix[row];
+                for (int col = 0; col < columnCount; col++){
+                    if (col > 0){
+                        bw.write(", ");
+                    }
+                    writeValue(bw, values[col]);
                 }
-                currentRow += col;
             }
-            csv += currentRow;
         }
-        return csv;
+    }
+    
+    /**
+     * Write a matrix value without creating a string
+     * 
+     * @param bw Writer to write to
+     * @param value Value to write
+     * @throws IOException 
+     */
+    private static void writeValue(BufferedWriter bw, int value) throws IOException {
+        if (value >= 0 && value <= 9) {
+            bw.write('0' + value);
+        } else {
+            bw.write(Integer.toString(value));
+        }
+    }
+    
+    /**
+     * 
+     * @return Quantity of rows in the song matrix
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+    
+    /**
+     * 
+     * @return Quantity of columns in the song matrix
+     */
+    public int getColumnCount() {
+        return columnCount;
     }
 }
@@ -1,22 +1,29 @@
 package com.garlick.midi_csv_convertor;
 
-import java.util.ArrayList;
-
-import javax.sound.midi.Track;
+import java.util.Arrays;
 
 public class TrackMatrix {
     
     //Buffer to store known active notes, before notes are turn off
-    ArrayList<ActiveNote> activeNotes = new ArrayList<>();
+    private int[] activeKeys = new int[16];
+    private long[] activeStartTimes = new long[16];
+    private int activeNotes = 0;
     
     //Stored list of notes to compare against for given input key
     public static final String[] NOTE_NAMES = {"C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"};
     
-    //Stored track data and semi-tone bounds
-    private final int[][] trackMatrix;
+    //Stored track data and semi-tone bounds. The matrix may be larger than
+    //the track when it is reused, so the rows and width in use are stored
+    private int[][] trackMatrix = new int[0][0];
+    private int rows;
+    private int width;
     private int minimumSemiTone = 0;
     private int maximumSemiTone = 127;
     
+    //Window of the song held by this matrix, used when a song is built in chunks
+    private int columnOffset;
+    private int songWidth;
+    
     /**
      * Initialise a track matrix which will be appended to the song matrix
      * 
@@ -26,9 +33,52 @@ public class TrackMatrix {
      * @param maximumSemiTone Maximum key
      */
     public TrackMatrix(int width, int height, int minimumSemiTone, int maximumSemiTone){
-        trackMatrix = new int[height * 2][width];
+        this(width, height, minimumSemiTone, maximumSemiTone, 0, width);
+    }
+    
+    /**
+     * Initialise a track matrix which only holds a window of the full track.
+     * Notes outside of the window are clipped, so the track can be built one
+     * chunk at a time
+     * 
+     * @param width Width of the window
+     * @param height height/semi-tones in the track
+     * @param minimumSemiTone Minimum key
+     * @param maximumSemiTone Maximum key
+     * @param columnOffset First column of the song held in the window
+     * @param songWidth Length of the whole song
+     */
+    public TrackMatrix(int width, int height, int minimumSemiTone, int maximumSemiTone, int columnOffset, int songWidth){
+        reset(width, height, minimumSemiTone, maximumSemiTone, columnOffset, songWidth);
+    }
+    
+    /**
+     * Clear the track matrix so it can be reused for another track, only
+     * allocating a new matrix if the current one is too small
+     * 
+     * @param width Width of the window
+     * @param height height/semi-tones in the track
+     * @param minimumSemiTone Minimum key
+     * @param maximumSemiTone Maximum key
+     * @param columnOffset First column of the song held in the window
+     * @param songWidth Length of the whole song
+     */
+    public final void reset(int width, int height, int minimumSemiTone, int maximumSemiTone, int columnOffset, int songWidth){
+        this.rows = height * 2;
+        this.width = width;
+        if (this.trackMatrix.length < this.rows || (this.rows > 0 && this.trackMatrix[0].length < width)) {
+            int capacity = this.trackMatrix.length > 0 ? this.trackMatrix[0].length : 0;
+            trackMatrix = new int[Math.max(this.rows, this.trackMatrix.length)][Math.max(width, capacity)];
+        } else {
+            for (int i = 0; i < this.rows; i++) {
+                Arrays.fill(this.trackMatrix[i], 0, width, 0);
+            }
+        }
         this.minimumSemiTone = minimumSemiTone;
         this.maximumSemiTone = maximumSemiTone;
+        this.columnOffset = columnOffset;
+        this.songWidth = songWidth;
+        this.activeNotes = 0;
     }
     
     /**
@@ -38,10 +88,13 @@ public class TrackMatrix {
      * @param eventTick The tick the note turn on 
      */
     public void noteOn(int key, long eventTick){
-        ActiveNote an = new ActiveNote();
-        an.key = key;
-        an.startTime = eventTick;
-        activeNotes.add(an);
+        if (activeNotes == activeKeys.length) {
+            activeKeys = Arrays.copyOf(activeKeys, activeNotes * 2);
+            activeStartTimes = Arrays.copyOf(activeStartTimes, activeNotes * 2);
+        }
+        activeKeys[activeNotes] = key;
+        activeStartTimes[activeNotes] = eventTick;
+        activeNotes++;
     }
     
     /**
@@ -55,16 +108,18 @@ public class TrackMatrix {
     public int noteOff(int key, long eventTick, int quantisation){
         int keyOutOfBounds = 0;
         
-        ActiveNote activatedNote = null;
-        for (ActiveNote an : activeNotes){
-            if (an.key == key){
-                keyOutOfBounds += addNote(key, an.startTime, eventTick, quantisation);
-                activatedNote = an;
+        int activatedNote = -1;
+        for (int i = 0; i < activeNotes; i++){
+            if (activeKeys[i] == key){
+                keyOutOfBounds += addNote(key, activeStartTimes[i], eventTick, quantisation);
+                activatedNote = i;
             }
         }
                 
-        if (activatedNote != null){
-            this.activeNotes.remove(activatedNote);
+        if (activatedNote >= 0){
+            activeNotes--;
+            System.arraycopy(activeKeys, activatedNote + 1, activeKeys, activatedNote, activeNotes - activatedNote);
+            System.arraycopy(activeStartTimes, activatedNote + 1, activeStartTimes, activatedNote, activeNotes - activatedNote);
         }
         
         return keyOutOfBounds;
@@ -77,12 +132,23 @@ public class TrackMatrix {
      * @param quantisation Quantisation of the song
      */
 	public void removeInactiveNotes(int quantisation) {
-        for (ActiveNote an : activeNotes){
-        	if (an.startTime < this.trackMatrix[0].length * quantisation) {
-                addNote(an.key, an.startTime, this.trackMatrix[0].length * quantisation, quantisation);
-        	}
+        for (int i = 0; i < activeNotes; i++){
+            addOpenNote(activeKeys[i], activeStartTimes[i], quantisation);
         }
 	}
+    
+    /**
+     * Add a note which was never turned off, ending it at the end of the song
+     * 
+     * @param key Semi-tone of note
+     * @param start Start tick of note
+     * @param quantisation Quantisation of the song
+     */
+    void addOpenNote(int key, long start, int quantisation) {
+        if (start < (long) this.songWidth * quantisation) {
+            addNote(key, start, (long) this.songWidth * quantisation, quantisation);
+        }
+    }
 
     /**
      * Add a semi-tone to the track matrix
@@ -93,17 +159,20 @@ public class TrackMatrix {
      * @param quantisation quantisation level
      * @return 1 if the note was outside of semi-tone bounds
      */
-    private int addNote(int key, long start, long end, int quantisation){
+    int addNote(int key, long start, long end, int quantisation){
         int relativeKey = key - this.minimumSemiTone;
-        int startPos = Convertor.convertTickToQuantizedBeatDown(start, quantisation);
-        int endPos = Convertor.convertTickToQuantizedBeatUp(end, quantisation) - 1;
+        int startPos = Convertor.convertTickToQuantizedBeatDown(start, quantisation) - this.columnOffset;
+        int endPos = Convertor.convertTickToQuantizedBeatUp(end, quantisation) - 1 - this.columnOffset;
         
         int activeKeyPos = relativeKey * 2;
         int activeKeyOnPos = activeKeyPos + 1;
         
         if (relativeKey >= 0 && relativeKey < this.maximumSemiTone - this.minimumSemiTone) {
-            this.trackMatrix[activeKeyOnPos][startPos] = 1;
-            for (int i = startPos; i <= endPos; i++){
+            //Clip the note to the window held by this matrix
+            if (startPos >= 0 && startPos < width) {
+                this.trackMatrix[activeKeyOnPos][startPos] = 1;
+            }
+            for (int i = Math.max(startPos, 0); i <= Math.min(endPos, width - 1); i++){
                 this.trackMatrix[activeKeyPos][i] = 1;
             }
             
@@ -114,6 +183,8 @@ public class TrackMatrix {
     }
     
     /**
+     * The generated track matrix. When the matrix is reused it may be larger
+     * than the track, so only getRowCount() rows of getWidth() are in use
      * 
      * @return The generated track matrix
      */
@@ -122,10 +193,40 @@ public class TrackMatrix {
     }
     
     /**
-     * Class to store a known active note
+     * 
+     * @param rows Rows the matrix will be reset to
+     * @param width Width the matrix will be reset to
+     * @return Bytes held by the matrix once reset to the given size
+     */
+    long getCapacity(int rows, int width) {
+        int capacity = this.trackMatrix.length > 0 ? this.trackMatrix[0].length : 0;
+        if (this.trackMatrix.length < rows || (rows > 0 && capacity < width)) {
+            return (long) Math.max(rows, this.trackMatrix.length) * Math.max(width, capacity) * Integer.BYTES;
+        }
+        return (long) this.trackMatrix.length * capacity * Integer.BYTES;
+    }
+    
+    /**
+     * 
+     * @return Rows of the matrix in use
+     */
+    int getRowCount() {
+        return this.rows;
+    }
+    
+    /**
+     * 
+     * @return Columns of the matrix in use
+     */
+    int getWidth() {
+        return this.width;
+    }
+    
+    /**
+     * 
+     * @return The first column of the song held in this matrix
      */
-    private static class ActiveNote {        
-        public int key = 0;
-        public long startTime = 0;        
+    int getColumnOffset() {
+        return this.columnOffset;
     }
 }
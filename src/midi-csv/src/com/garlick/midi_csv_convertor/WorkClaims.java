@@ -0,0 +1,258 @@
+package com.garlick.midi_csv_convertor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coordinates several worker processes sharing a job folder, such as build
+ * nodes on a shared filesystem. A worker claims a unit of work by atomically
+ * creating a claim file, and marks it done with a done file once converted.
+ * Claims are refreshed while held, so the claims of a crashed worker expire
+ * and are taken over by another worker.
+ *
+ * Each claim of a unit has its own epoch, numbered from 0, and the claim
+ * with the latest epoch holds the unit. An expired claim is taken over by
+ * creating the claim of the next epoch, so claims are only ever created
+ * exclusively and never moved or overwritten, and only one worker can take
+ * over each expired claim.
+ *
+ * @author Sam Garlick
+ */
+public class WorkClaims implements Closeable {
+
+    public static final long CLAIM_EXPIRY_MILLIS = 10 * 60 * 1000;
+    public static final long POLL_MILLIS = 5 * 1000;
+
+    //Shared job folder and the name of this worker
+    private final Path jobDir;
+    private final String workerId;
+
+    //Claims held by this worker, refreshed until they are completed
+    private final Map<String, Long> held = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService heartbeat;
+
+    /**
+     * Join the job in the given folder
+     *
+     * @param jobDir Folder shared by all workers
+     * @throws IOException
+     */
+    public WorkClaims(Path jobDir) throws IOException {
+        this.jobDir = jobDir;
+        this.workerId = ManagementFactory.getRuntimeMXBean().getName() + "-" + System.nanoTime();
+        Files.createDirectories(jobDir);
+
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "work-claims-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = CLAIM_EXPIRY_MILLIS / 4;
+        this.heartbeat.scheduleAtFixedRate(this::refresh, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record a setting every worker of the job must share, refusing to join
+     * a job started with a different value. The value is kept in the name of
+     * the setting file, so it is recorded by atomically creating the file.
+     *
+     * @param name Name of the setting
+     * @param value Value of the setting for this worker
+     * @throws IOException If the job was started with a different value
+     */
+    public void requireSetting(String name, String value) throws IOException {
+        checkSetting(name, value);
+        Path setting = jobDir.resolve(name + ".setting." + value);
+        boolean created = false;
+        try {
+            Files.createFile(setting);
+            created = true;
+        } catch (FileAlreadyExistsException e) {
+            //Recorded by another worker
+        }
+
+        //Another worker may have recorded a different value at the same time
+        try {
+            checkSetting(name, value);
+        } catch (IOException e) {
+            if (created) {
+                Files.deleteIfExists(setting);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Try to claim a unit of work, taking over the claim of another worker
+     * if it has expired
+     *
+     * @param unit Name of the unit
+     * @return True if this worker now holds the claim
+     * @throws IOException
+     */
+    public boolean claim(String unit) throws IOException {
+        if (isDone(unit)) {
+            return false;
+        }
+
+        long latest = getLatestEpoch(unit);
+        if (latest >= 0 && !isExpired(claimFile(unit, latest))) {
+            return false;
+        }
+        long epoch = latest + 1;
+        try {
+            Files.write(Files.createFile(claimFile(unit, epoch)), workerId.getBytes(StandardCharsets.UTF_8));
+        } catch (FileAlreadyExistsException e) {
+            //Another worker made or took over the claim first
+            return false;
+        }
+        held.put(unit, epoch);
+        if (latest >= 0) {
+            System.out.println("Taking over expired claim: " + unit);
+        }
+
+        //Another worker may have finished the unit before the claim was made
+        if (isDone(unit)) {
+            release(unit);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Mark a claimed unit of work as done, removing every claim of the unit
+     *
+     * @param unit Name of the unit
+     * @throws IOException
+     */
+    public void complete(String unit) throws IOException {
+        try {
+            Files.createFile(jobDir.resolve(unit + ".done"));
+        } catch (FileAlreadyExistsException e) {
+            //Converted by a worker which took over an expired claim
+        }
+        held.remove(unit);
+        for (long epoch = getLatestEpoch(unit); epoch >= 0; epoch--) {
+            Files.deleteIfExists(claimFile(unit, epoch));
+        }
+    }
+
+    /**
+     *
+     * @param unit Name of the unit
+     * @return True if a worker has completed the unit
+     */
+    public boolean isDone(String unit) {
+        return Files.exists(jobDir.resolve(unit + ".done"));
+    }
+
+    /**
+     * Remove this worker's claim on a unit
+     *
+     * @param unit Name of the unit
+     * @throws IOException
+     */
+    private void release(String unit) throws IOException {
+        Long epoch = held.remove(unit);
+        if (epoch != null) {
+            Files.deleteIfExists(claimFile(unit, epoch));
+        }
+    }
+
+    /**
+     * Refresh the claims held by this worker so they do not expire
+     */
+    private void refresh() {
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        for (Map.Entry<String, Long> claim : held.entrySet()) {
+            Path claimFile = claimFile(claim.getKey(), claim.getValue());
+            try {
+                Files.setLastModifiedTime(claimFile, now);
+            } catch (IOException e) {
+                System.out.println("Unable to refresh claim " + claimFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     *
+     * @param claim Claim file
+     * @return True if the claim has not been refreshed within the expiry time
+     * @throws IOException
+     */
+    private boolean isExpired(Path claim) throws IOException {
+        try {
+            return System.currentTimeMillis() - Files.getLastModifiedTime(claim).toMillis() > CLAIM_EXPIRY_MILLIS;
+        } catch (NoSuchFileException e) {
+            //Removed by a worker which released or completed the unit
+            return true;
+        }
+    }
+
+    /**
+     *
+     * @param unit Name of the unit
+     * @return Latest epoch of the claims of the unit, or -1 if unclaimed
+     * @throws IOException
+     */
+    private long getLatestEpoch(String unit) throws IOException {
+        String prefix = unit + ".claim.";
+        long latest = -1;
+        try (DirectoryStream<Path> claims = Files.newDirectoryStream(jobDir, prefix + "*")) {
+            for (Path claim : claims) {
+                try {
+                    latest = Math.max(latest, Long.parseLong(claim.getFileName().toString().substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    //Not a claim file
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     *
+     * @param name Name of the setting
+     * @param value Value of the setting for this worker
+     * @throws IOException If the job records a different value
+     */
+    private void checkSetting(String name, String value) throws IOException {
+        String prefix = name + ".setting.";
+        try (DirectoryStream<Path> settings = Files.newDirectoryStream(jobDir, prefix + "*")) {
+            for (Path setting : settings) {
+                String recorded = setting.getFileName().toString().substring(prefix.length());
+                if (!recorded.equals(value)) {
+                    throw new IOException("Job folder " + jobDir + " was started with " + name + " " + recorded + ", not " + value);
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @param unit Name of the unit
+     * @param epoch Epoch of the claim
+     * @return Claim file of the unit
+     */
+    private Path claimFile(String unit, long epoch) {
+        return jobDir.resolve(unit + ".claim." + epoch);
+    }
+
+    @Override
+    public void close() {
+        heartbeat.shutdownNow();
+    }
+}
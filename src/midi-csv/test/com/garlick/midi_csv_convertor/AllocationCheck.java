@@ -0,0 +1,134 @@
+package com.garlick.midi_csv_convertor;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Checks that converting a folder allocates close to nothing once the
+ * buffers of the conversion context have grown. A folder of random songs is
+ * converted several times with one context to warm up, then the bytes
+ * allocated by this thread while converting it again are measured, and the
+ * check fails if a file allocates more than the threshold. Songs are read
+ * from the note index cache, as reading a midi file creates an object for
+ * every event however the conversion is written.
+ *
+ * @author Sam Garlick
+ */
+public class AllocationCheck {
+
+    private static final int SONGS = 20;
+    private static final int TRACKS = 3;
+    private static final int NOTES = 400;
+    private static final int RESOLUTION = 96;
+    private static final float QUANTISATION = 0.25f;
+    private static final String MINIMUM_KEY = "C1";
+    private static final String MAXIMUM_KEY = "C6";
+    private static final long MEMORY_LIMIT = 512L * 1024 * 1024;
+    private static final int WARM_UP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 5;
+
+    //Most bytes a file may allocate, mostly the notes read from the index
+    //and the writer of the output file
+    private static final long MAXIMUM_BYTES_PER_FILE = 128 * 1024;
+
+    /**
+     * Entry point
+     *
+     * @param args Command line inputs
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        Path workDir = Files.createTempDirectory("allocation-check");
+        long bytesPerFile;
+        try {
+            Path inpDir = Files.createDirectories(workDir.resolve("midi"));
+            Path outDir = Files.createDirectories(workDir.resolve("csv"));
+            Path cacheDir = Files.createDirectories(workDir.resolve("cache"));
+            for (int songNo = 0; songNo < SONGS; songNo++) {
+                MidiSystem.write(generateSong(songNo), 1, inpDir.resolve("song" + songNo + ".mid").toFile());
+            }
+
+            ConversionContext context = new ConversionContext();
+            for (int round = 0; round < WARM_UP_ROUNDS; round++) {
+                convertFolder(inpDir, outDir, cacheDir, context);
+            }
+            long allocated = threads.getThreadAllocatedBytes(threadId);
+            for (int round = 0; round < MEASURED_ROUNDS; round++) {
+                convertFolder(inpDir, outDir, cacheDir, context);
+            }
+            bytesPerFile = (threads.getThreadAllocatedBytes(threadId) - allocated) / ((long) SONGS * MEASURED_ROUNDS);
+        } finally {
+            deleteFolder(workDir);
+        }
+
+        int failures = bytesPerFile > MAXIMUM_BYTES_PER_FILE ? 1 : 0;
+        System.out.println("-- Allocated " + bytesPerFile + " bytes per file, at most " + MAXIMUM_BYTES_PER_FILE + " expected --");
+        System.out.println("-- Checked " + SONGS * MEASURED_ROUNDS + " converted files with " + failures + " failures --");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Convert every song in the folder with the given context
+     *
+     * @param inpDir Folder of midi files
+     * @param outDir Folder to save CSVs to
+     * @param cacheDir Note index cache folder
+     * @param context Buffers reused between conversions
+     * @throws Exception
+     */
+    private static void convertFolder(Path inpDir, Path outDir, Path cacheDir, ConversionContext context) throws Exception {
+        for (int songNo = 0; songNo < SONGS; songNo++) {
+            String inputFile = inpDir.resolve("song" + songNo + ".mid").toString();
+            SongMatrix songMatrix = Convertor.createSongMatrix(inputFile, QUANTISATION, MINIMUM_KEY, MAXIMUM_KEY, MEMORY_LIMIT, cacheDir, context);
+            songMatrix.save(outDir.resolve("song" + songNo + ".csv").toString());
+        }
+    }
+
+    /**
+     *
+     * @param seed Seed of the song
+     * @return Random song with overlapping notes on every track
+     * @throws Exception
+     */
+    private static Sequence generateSong(long seed) throws Exception {
+        Random random = new Random(seed);
+        Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+        for (int trackNo = 0; trackNo < TRACKS; trackNo++) {
+            Track track = sequence.createTrack();
+            long tick = 0;
+            for (int noteNo = 0; noteNo < NOTES; noteNo++) {
+                int key = 24 + random.nextInt(60);
+                tick += random.nextInt(RESOLUTION);
+                track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, key, 70), tick));
+                track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, key, 0), tick + 1 + random.nextInt(RESOLUTION * 2)));
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Delete a folder and everything in it
+     *
+     * @param folder Folder to delete
+     * @throws IOException
+     */
+    private static void deleteFolder(Path folder) throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
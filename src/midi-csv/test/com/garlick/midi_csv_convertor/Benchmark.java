@@ -0,0 +1,476 @@
+package com.garlick.midi_csv_convertor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.stream.Stream;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * End to end benchmark and regression check of both convertors. Synthetic
+ * corpora are generated at increasing song length, track count and corpus
+ * size, converted from MIDI to CSV and back to MIDI, and every note is
+ * checked to survive the round trip. Each convertor is run in its own JVM
+ * to sample its peak resident memory, and timed again in this JVM after a
+ * warm up, so the start up of a JVM does not hide how the time grows. Wall
+ * time, time per file and peak resident memory are compared with a
+ * baseline file, and conversions which grow faster than linearly with the
+ * scale are flagged.
+ *
+ * @author Sam Garlick
+ */
+public class Benchmark {
+
+    //Size of the smallest corpus, multiplied by each scale
+    public static final int BASE_STEPS = 2048;
+    public static final int BASE_TRACKS = 4;
+    public static final int BASE_SONGS = 8;
+    public static final String DEFAULT_SCALES = "1,2,4,8";
+
+    //Generated songs, quantised to a quarter beat between C0 and G#5
+    private static final int RESOLUTION = 96;
+    private static final int TICKS_PER_STEP = RESOLUTION / 4;
+    private static final int CSV_MIDI_TICKS_PER_STEP = 120 / 4;
+    private static final int MINIMUM_KEY = 24;
+    private static final int MAXIMUM_KEY = 92;
+
+    //Limits before a result is flagged
+    public static final double MAXIMUM_SCALING_EXPONENT = 1.3;
+    public static final double REGRESSION_TOLERANCE = 1.5;
+    public static final long REGRESSION_SLACK_MILLIS = 500;
+    public static final long REGRESSION_SLACK_KB = 32 * 1024;
+
+    private static final String[] SWEEPS = {"length", "tracks", "corpus"};
+
+    //Conversions of the smallest corpus before timing, and timed runs of
+    //which the fastest is kept
+    private static final int WARM_UP_RUNS = 3;
+    private static final int TIMED_RUNS = 2;
+
+    /**
+     * Entry point
+     *
+     * @param args Command line inputs
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 2) {
+            Path workDir = Paths.get(args[0]).toAbsolutePath();
+            String csvMidiClasspath = args[1];
+
+            String scaleList = DEFAULT_SCALES;
+            if (args.length > 2) {scaleList = args[2];}
+            int[] scales = Arrays.stream(scaleList.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+
+            Path baselineFile = workDir.resolve("baseline.properties");
+            if (args.length > 3) {baselineFile = Paths.get(args[3]);}
+
+            int failures = run(workDir, csvMidiClasspath, scales, baselineFile);
+            System.out.println("-- Finished benchmark with " + failures + " failures --");
+            System.exit(failures == 0 ? 0 : 1);
+        } else {
+            System.out.println("==================\n"
+                    + "Please enter the required arguments: \n"
+                    + "*Working folder for generated songs (string)\n"
+                    + "*Classpath of the CSV-MIDI convertor (string)\n"
+                    + "Comma separated scales of the corpus (string)\n"
+                    + "Baseline results file, created if missing (string)\n\n"
+                    + "For more information, please see: https://github.com/SamGarlick/A-Machine-Learning-Approach-To-Multi-Instrumental-Composition\n"
+                    + "==================");
+        }
+    }
+
+    /**
+     * Run every sweep at every scale
+     *
+     * @param workDir Working folder for generated songs
+     * @param csvMidiClasspath Classpath of the CSV-MIDI convertor
+     * @param scales Scales of the corpus
+     * @param baselineFile Baseline results file
+     * @return Quantity of failed checks
+     * @throws Exception
+     */
+    private static int run(Path workDir, String csvMidiClasspath, int[] scales, Path baselineFile) throws Exception {
+        String midiCsvClasspath = System.getProperty("java.class.path");
+        Properties baseline = new Properties();
+        boolean hasBaseline = Files.exists(baselineFile);
+        if (hasBaseline) {
+            try (InputStream in = new FileInputStream(baselineFile.toFile())) {
+                baseline.load(in);
+            }
+        }
+        Properties results = new Properties();
+        int failures = 0;
+
+        //Load both convertors into this JVM to time them, and warm them up
+        Method midiCsvMain = MIDIConvertor.class.getMethod("main", String[].class);
+        Method csvMidiMain = loadMain(csvMidiClasspath, "com.garlick.csv_midi_convertor.MIDIConvertor");
+        Path warmUpDir = workDir.resolve("warm-up");
+        deleteFolder(warmUpDir);
+        generateCorpus(warmUpDir.resolve("mid"), BASE_SONGS, BASE_TRACKS, BASE_STEPS, 0);
+        for (int run = 0; run < WARM_UP_RUNS; run++) {
+            timeConvertor(midiCsvMain, warmUpDir.resolve("csv"),
+                    warmUpDir.resolve("mid").toString(), warmUpDir.resolve("csv").toString(), "C0", "G#5", "4");
+            timeConvertor(csvMidiMain, warmUpDir.resolve("out"),
+                    warmUpDir.resolve("csv").toString(), warmUpDir.resolve("out").toString(), Integer.toString(BASE_TRACKS), "C0", "4");
+        }
+        deleteFolder(warmUpDir);
+        System.out.println(String.format("%-8s %6s %6s %6s %6s | %10s %8s %8s | %10s %8s %8s | %s",
+                "sweep", "scale", "songs", "tracks", "steps", "m-c ms", "ms/file", "RSS MB", "c-m ms", "ms/file", "RSS MB", "round trip"));
+
+        for (String sweep : SWEEPS) {
+            long[][] millis = new long[2][scales.length];
+            for (int s = 0; s < scales.length; s++) {
+                int scale = scales[s];
+                int steps = BASE_STEPS * (sweep.equals("length") ? scale : 1);
+                int tracks = BASE_TRACKS * (sweep.equals("tracks") ? scale : 1);
+                int songs = BASE_SONGS * (sweep.equals("corpus") ? scale : 1);
+
+                Path runDir = workDir.resolve(sweep + "-" + scale);
+                Path midiDir = runDir.resolve("mid");
+                Path csvDir = runDir.resolve("csv");
+                Path outDir = runDir.resolve("out");
+                deleteFolder(runDir);
+                generateCorpus(midiDir, songs, tracks, steps, 1000L * scale + sweep.hashCode());
+
+                long[] midiCsv = {0, runConvertor(midiCsvClasspath, MIDIConvertor.class.getName(),
+                        midiDir.toString(), csvDir.toString(), "C0", "G#5", "4")};
+                long[] csvMidi = {0, runConvertor(csvMidiClasspath, "com.garlick.csv_midi_convertor.MIDIConvertor",
+                        csvDir.toString(), outDir.toString(), Integer.toString(tracks), "C0", "4")};
+                int mismatches = checkRoundTrip(midiDir, outDir, songs);
+                
+                Path timedDir = runDir.resolve("timed");
+                midiCsv[0] = timeConvertor(midiCsvMain, timedDir,
+                        midiDir.toString(), timedDir.toString(), "C0", "G#5", "4");
+                csvMidi[0] = timeConvertor(csvMidiMain, timedDir,
+                        csvDir.toString(), timedDir.toString(), Integer.toString(tracks), "C0", "4");
+                failures += mismatches;
+                millis[0][s] = midiCsv[0];
+                millis[1][s] = csvMidi[0];
+
+                System.out.println(String.format("%-8s %6d %6d %6d %6d | %10d %8.1f %8.1f | %10d %8.1f %8.1f | %s",
+                        sweep, scale, songs, tracks, steps,
+                        midiCsv[0], (double) midiCsv[0] / songs, midiCsv[1] / 1024.0,
+                        csvMidi[0], (double) csvMidi[0] / songs, csvMidi[1] / 1024.0,
+                        mismatches == 0 ? "ok" : mismatches + " songs differ"));
+
+                String key = sweep + "." + scale;
+                results.setProperty(key + ".midi-csv.millis", Long.toString(midiCsv[0]));
+                results.setProperty(key + ".csv-midi.millis", Long.toString(csvMidi[0]));
+                results.setProperty(key + ".midi-csv.rssKB", Long.toString(midiCsv[1]));
+                results.setProperty(key + ".csv-midi.rssKB", Long.toString(csvMidi[1]));
+                if (hasBaseline) {
+                    failures += checkBaseline(baseline, key + ".midi-csv.millis", midiCsv[0], REGRESSION_SLACK_MILLIS, "ms");
+                    failures += checkBaseline(baseline, key + ".csv-midi.millis", csvMidi[0], REGRESSION_SLACK_MILLIS, "ms");
+                    failures += checkBaseline(baseline, key + ".midi-csv.rssKB", midiCsv[1], REGRESSION_SLACK_KB, "KB");
+                    failures += checkBaseline(baseline, key + ".csv-midi.rssKB", csvMidi[1], REGRESSION_SLACK_KB, "KB");
+                }
+                deleteFolder(runDir);
+            }
+
+            //Fit the growth of the time spent converting against the scale
+            failures += checkScaling(sweep, "midi-csv", scales, millis[0]);
+            failures += checkScaling(sweep, "csv-midi", scales, millis[1]);
+        }
+
+        if (!hasBaseline) {
+            try (OutputStream out = new FileOutputStream(baselineFile.toFile())) {
+                results.store(out, "Benchmark baseline");
+            }
+            System.out.println("-- Saved baseline to " + baselineFile + " --");
+        }
+        return failures;
+    }
+
+    /**
+     * Generate songs of random notes on a quarter beat grid. No key is played
+     * twice at once in a track, so every note can be recovered exactly after
+     * a round trip, including notes still sounding at the end of the song
+     *
+     * @param folder Folder to save songs to
+     * @param songs Quantity of songs
+     * @param tracks Tracks in each song
+     * @param steps Time steps in each song
+     * @param seed Seed of the random notes
+     * @throws Exception
+     */
+    static void generateCorpus(Path folder, int songs, int tracks, int steps, long seed) throws Exception {
+        Files.createDirectories(folder);
+        Random random = new Random(seed);
+        for (int songNo = 0; songNo < songs; songNo++) {
+            Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+            for (int trackNo = 0; trackNo < tracks; trackNo++) {
+                Track track = sequence.createTrack();
+                int[] freeFrom = new int[128];
+                for (int step = 0; step < steps; step++) {
+                    int key = MINIMUM_KEY + random.nextInt(MAXIMUM_KEY - MINIMUM_KEY + 1);
+                    if ((random.nextInt(4) == 0 || step == 0) && freeFrom[key] <= step) {
+                        int end = Math.min(step + 1 + random.nextInt(8), steps);
+                        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, key, 70), (long) step * TICKS_PER_STEP));
+                        track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, key, 0), (long) end * TICKS_PER_STEP));
+                        freeFrom[key] = end;
+                    }
+                }
+            }
+
+            //Mark the end of the song so every track has the same length
+            MetaMessage marker = new MetaMessage();
+            marker.setMessage(0x06, new byte[]{'E', 'n', 'd'}, 3);
+            sequence.getTracks()[0].add(new MidiEvent(marker, (long) steps * TICKS_PER_STEP));
+            MidiSystem.write(sequence, 1, folder.resolve("song" + songNo + ".mid").toFile());
+        }
+    }
+
+    /**
+     * Load the entry point of a convertor which is not on the classpath of
+     * this JVM
+     *
+     * @param classpath Classpath of the convertor
+     * @param mainClass Entry point of the convertor
+     * @return Main method of the convertor
+     * @throws Exception
+     */
+    private static Method loadMain(String classpath, String mainClass) throws Exception {
+        String[] paths = classpath.split(File.pathSeparator);
+        URL[] urls = new URL[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            urls[i] = Paths.get(paths[i]).toUri().toURL();
+        }
+        ClassLoader loader = new URLClassLoader(urls, Benchmark.class.getClassLoader());
+        return Class.forName(mainClass, true, loader).getMethod("main", String[].class);
+    }
+
+    /**
+     * Time a convertor in this JVM, discarding its output to the user. The
+     * output folder is removed before each run, so every run converts every
+     * file rather than resuming the last run
+     *
+     * @param main Main method of the convertor
+     * @param outDir Output folder of the convertor
+     * @param args Arguments of the convertor
+     * @return Fastest wall time in milliseconds
+     * @throws Exception
+     */
+    private static long timeConvertor(Method main, Path outDir, String... args) throws Exception {
+        long fastest = Long.MAX_VALUE;
+        PrintStream out = System.out;
+        for (int run = 0; run < TIMED_RUNS; run++) {
+            deleteFolder(outDir);
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            long start = System.nanoTime();
+            try {
+                main.invoke(null, (Object) args);
+            } finally {
+                System.setOut(out);
+            }
+            fastest = Math.min(fastest, (System.nanoTime() - start) / 1000000);
+        }
+        return fastest;
+    }
+
+    /**
+     * Run a convertor in its own JVM, sampling its peak resident memory
+     * while it runs
+     *
+     * @param classpath Classpath of the convertor
+     * @param mainClass Entry point of the convertor
+     * @param args Arguments of the convertor
+     * @return Peak resident memory in KB, or -1 if it cannot be read on this
+     * platform
+     * @throws Exception
+     */
+    private static long runConvertor(String classpath, String mainClass, String... args) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(classpath);
+        command.add(mainClass);
+        command.addAll(Arrays.asList(args));
+
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        Path status = Paths.get("/proc", Long.toString(process.pid()), "status");
+        long peakMemory = -1;
+        while (process.isAlive()) {
+            peakMemory = Math.max(peakMemory, readPeakMemory(status));
+            Thread.sleep(5);
+        }
+
+        if (process.exitValue() != 0) {
+            throw new IOException(mainClass + " failed with exit code " + process.exitValue() + ": " + String.join(" ", args));
+        }
+        return peakMemory;
+    }
+
+    /**
+     *
+     * @param status Status file of a process
+     * @return Peak resident memory of the process in KB, or -1
+     */
+    private static long readPeakMemory(Path status) {
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            //Process has exited or the platform has no /proc
+        }
+        return -1;
+    }
+
+    /**
+     * Compare the notes of every generated song with the song after a round
+     * trip through both convertors
+     *
+     * @param midiDir Folder of generated songs
+     * @param outDir Folder of converted songs
+     * @param songs Quantity of songs
+     * @return Quantity of songs whose notes differ
+     * @throws Exception
+     */
+    private static int checkRoundTrip(Path midiDir, Path outDir, int songs) throws Exception {
+        int mismatches = 0;
+        for (int songNo = 0; songNo < songs; songNo++) {
+            File original = midiDir.resolve("song" + songNo + ".mid").toFile();
+            File converted = outDir.resolve("song" + songNo + ".mid").toFile();
+            if (!converted.exists() || !readNotes(MidiSystem.getSequence(original), TICKS_PER_STEP)
+                    .equals(readNotes(MidiSystem.getSequence(converted), CSV_MIDI_TICKS_PER_STEP))) {
+                System.out.println("Notes of " + original + " did not survive the round trip");
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    /**
+     * Read the notes of each track which has notes, as key, start step and
+     * end step
+     *
+     * @param sequence MIDI sequence
+     * @param ticksPerStep Ticks in each time step
+     * @return Sorted notes of each track
+     */
+    private static List<List<List<Long>>> readNotes(Sequence sequence, int ticksPerStep) {
+        List<List<List<Long>>> tracks = new ArrayList<>();
+        for (Track track : sequence.getTracks()) {
+            List<List<Long>> notes = new ArrayList<>();
+            long[] startTick = new long[128];
+            Arrays.fill(startTick, -1);
+            for (int i = 0; i < track.size(); i++) {
+                MidiMessage message = track.get(i).getMessage();
+                if (message instanceof ShortMessage) {
+                    ShortMessage sm = (ShortMessage) message;
+                    int key = sm.getData1();
+                    long tick = track.get(i).getTick();
+                    if (sm.getCommand() == Convertor.NOTE_ON) {
+                        startTick[key] = tick;
+                    } else if (sm.getCommand() == Convertor.NOTE_OFF && startTick[key] >= 0) {
+                        notes.add(Arrays.asList((long) key, startTick[key] / ticksPerStep, tick / ticksPerStep));
+                        startTick[key] = -1;
+                    }
+                }
+            }
+            if (!notes.isEmpty()) {
+                notes.sort(Comparator.comparing((List<Long> n) -> n.get(1)).thenComparing(n -> n.get(0)));
+                tracks.add(notes);
+            }
+        }
+        return tracks;
+    }
+
+    /**
+     * Flag a conversion which is slower, or uses more memory, than its
+     * baseline
+     *
+     * @param baseline Baseline results
+     * @param key Name of the result
+     * @param measured Measured time or peak memory
+     * @param slack Allowance added to the tolerance, for small results
+     * @param unit Unit of the result
+     * @return 1 if the conversion has regressed
+     */
+    private static int checkBaseline(Properties baseline, String key, long measured, long slack, String unit) {
+        String value = baseline.getProperty(key);
+        if (value == null) {
+            return 0;
+        }
+        long expected = Long.parseLong(value);
+        //Peak memory is -1 on platforms without /proc
+        if (expected < 0 || measured < 0) {
+            return 0;
+        }
+        if (measured > expected * REGRESSION_TOLERANCE + slack) {
+            System.out.println("Regression: " + key + " was " + measured + unit + ", baseline " + expected + unit);
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Flag a conversion whose time grows faster than linearly between the
+     * smallest and largest scale
+     *
+     * @param sweep Name of the sweep
+     * @param convertor Name of the convertor
+     * @param scales Scales of the corpus
+     * @param millis Measured time at each scale
+     * @return 1 if the growth is super-linear
+     */
+    private static int checkScaling(String sweep, String convertor, int[] scales, long[] millis) {
+        int last = scales.length - 1;
+        if (last < 1 || scales[last] == scales[0]) {
+            return 0;
+        }
+        double first = Math.max(1, millis[0]);
+        double largest = Math.max(1, millis[last]);
+        double exponent = Math.log(largest / first) / Math.log((double) scales[last] / scales[0]);
+        System.out.println(String.format("   %s %s grows with scale^%.2f", convertor, sweep, exponent));
+        if (exponent > MAXIMUM_SCALING_EXPONENT) {
+            System.out.println("Super-linear scaling: " + convertor + " " + sweep);
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Delete a folder and everything in it
+     *
+     * @param folder Folder to delete
+     * @throws IOException
+     */
+    private static void deleteFolder(Path folder) throws IOException {
+        if (Files.exists(folder)) {
+            try (Stream<Path> paths = Files.walk(folder)) {
+                for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+}
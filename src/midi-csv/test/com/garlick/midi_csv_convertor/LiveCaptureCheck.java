@@ -0,0 +1,138 @@
+package com.garlick.midi_csv_convertor;
+
+import java.io.File;
+import java.util.Random;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+/**
+ * Checks that replaying a song into a live capture gives the same track
+ * matrix as converting the song from a file. Random single track songs are
+ * generated with notes off the quantisation grid, restruck keys and keys
+ * outside of the semi-tone bounds, and replayed a second time with every
+ * note off sent as a note on with no velocity.
+ *
+ * @author Sam Garlick
+ */
+public class LiveCaptureCheck {
+
+    private static final int RESOLUTION = 96;
+    private static final float QUANTISATION = 0.25f;
+    private static final int TICKS = RESOLUTION * 64;
+    private static final String MINIMUM_KEY = "C1";
+    private static final String MAXIMUM_KEY = "C6";
+
+    /**
+     * Entry point
+     *
+     * @param args Command line inputs, optionally the quantity of songs
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int songs = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int failures = 0;
+        File songFile = File.createTempFile("live-capture", ".mid");
+        try {
+            for (int songNo = 0; songNo < songs; songNo++) {
+                failures += check(songNo, songFile) ? 0 : 1;
+            }
+        } finally {
+            songFile.delete();
+        }
+        System.out.println("-- Checked " + songs + " replayed songs with " + failures + " failures --");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Convert a random song from a file and by replaying it, and compare the
+     * matrices
+     *
+     * @param seed Seed of the song
+     * @param songFile File to save the song to
+     * @return True if the matrices match
+     * @throws Exception
+     */
+    private static boolean check(long seed, File songFile) throws Exception {
+        Sequence sequence = generateSong(seed, false);
+        MidiSystem.write(sequence, 1, songFile);
+        SongMatrix songMatrix = Convertor.createSongMatrix(songFile.getPath(), QUANTISATION, MINIMUM_KEY, MAXIMUM_KEY);
+
+        boolean matches = true;
+        int[][] replayed = replay(sequence, songMatrix.getColumnCount());
+        if (!equals(songMatrix.songMatrix, replayed, songMatrix.getRowCount(), songMatrix.getColumnCount())) {
+            System.out.println("Song " + seed + " replayed differs from the file conversion");
+            matches = false;
+        }
+        int[][] silentNoteOffs = replay(generateSong(seed, true), songMatrix.getColumnCount());
+        if (!equals(replayed, silentNoteOffs, replayed.length, songMatrix.getColumnCount())) {
+            System.out.println("Song " + seed + " replayed with silent note ons differs from note offs");
+            matches = false;
+        }
+        return matches;
+    }
+
+    /**
+     * Replay a sequence into a live capture from time zero
+     *
+     * @param sequence Sequence to replay
+     * @param steps Time steps to capture
+     * @return Matrix of the capture, oldest step first
+     * @throws Exception
+     */
+    private static int[][] replay(Sequence sequence, int steps) throws Exception {
+        LiveCapture capture = new LiveCapture(Convertor.parseKeyString(MINIMUM_KEY), Convertor.parseKeyString(MAXIMUM_KEY) + 1,
+                steps + 1, (int) (QUANTISATION * LiveCapture.BEAT_MICROS));
+        capture.start(0);
+        LiveCapture.replay(sequence, capture);
+        return capture.toTrackMatrix().getMatrix();
+    }
+
+    /**
+     * Generate a single track song of random notes
+     *
+     * @param seed Seed of the notes
+     * @param silentNoteOffs True to end notes with a note on of no velocity
+     * @return Song
+     * @throws Exception
+     */
+    private static Sequence generateSong(long seed, boolean silentNoteOffs) throws Exception {
+        Random random = new Random(seed);
+        Sequence sequence = new Sequence(Sequence.PPQ, RESOLUTION);
+        Track track = sequence.createTrack();
+        int minimumKey = Convertor.parseKeyString(MINIMUM_KEY);
+        int maximumKey = Convertor.parseKeyString(MAXIMUM_KEY);
+        for (int note = 0; note < 200; note++) {
+            //Keys a little either side of the bounds, on and off the grid
+            int key = minimumKey - 4 + random.nextInt(maximumKey - minimumKey + 9);
+            long start = random.nextBoolean() ? random.nextInt(TICKS / 24) * 24 : random.nextInt(TICKS);
+            long end = Math.min(TICKS, start + 1 + random.nextInt(RESOLUTION * 2));
+            track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, key, 64), start));
+            ShortMessage off = silentNoteOffs ? new ShortMessage(ShortMessage.NOTE_ON, 0, key, 0)
+                    : new ShortMessage(ShortMessage.NOTE_OFF, 0, key, 0);
+            track.add(new MidiEvent(off, end));
+        }
+        return sequence;
+    }
+
+    /**
+     *
+     * @param a Matrix
+     * @param b Another matrix
+     * @param rows Rows to compare
+     * @param columns Columns to compare
+     * @return True if the matrices have the same values
+     */
+    private static boolean equals(int[][] a, int[][] b, int rows, int columns) {
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                if (a[row][column] != b[row][column]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
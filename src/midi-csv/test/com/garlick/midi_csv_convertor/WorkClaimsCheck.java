@@ -0,0 +1,175 @@
+package com.garlick.midi_csv_convertor;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Checks that several worker processes sharing a job folder complete every
+ * unit of work exactly once. Workers are started as separate JVMs which
+ * race to claim the units, some units start with the expired claim of a
+ * crashed worker to be taken over, and one unit is held by a live worker
+ * throughout, which must never be claimed by another.
+ *
+ * @author Sam Garlick
+ */
+public class WorkClaimsCheck {
+
+    private static final String WORKER = "worker";
+    private static final String HELD_UNIT = "held";
+    private static final long WORKER_POLL_MILLIS = 10;
+
+    /**
+     * Entry point
+     *
+     * @param args Command line inputs, optionally the quantity of workers
+     * and units, or 'worker', the job folder and units to run as a worker
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && args[0].equals(WORKER)) {
+            work(Paths.get(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        int workers = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+        int units = args.length > 1 ? Integer.parseInt(args[1]) : 48;
+
+        Path jobDir = Files.createTempDirectory("work-claims");
+        int failures;
+        try {
+            failures = check(jobDir, workers, units);
+        } finally {
+            try (Stream<Path> paths = Files.walk(jobDir)) {
+                for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            }
+        }
+        System.out.println("-- Checked " + workers + " workers sharing " + units + " units with " + failures + " failures --");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Run the workers and check each unit was completed once
+     *
+     * @param jobDir Job folder shared by the workers
+     * @param workers Quantity of worker processes
+     * @param units Quantity of units of work
+     * @return Quantity of failed checks
+     * @throws Exception
+     */
+    private static int check(Path jobDir, int workers, int units) throws Exception {
+        //Claims of a crashed worker, expired long ago
+        FileTime expired = FileTime.fromMillis(System.currentTimeMillis() - 2 * WorkClaims.CLAIM_EXPIRY_MILLIS);
+        for (int unit = 0; unit < units; unit += 4) {
+            Path claim = Files.write(jobDir.resolve(unitName(unit) + ".claim.0"), "crashed".getBytes(StandardCharsets.UTF_8));
+            Files.setLastModifiedTime(claim, expired);
+        }
+
+        int failures = 0;
+        try (WorkClaims holder = new WorkClaims(jobDir)) {
+            if (!holder.claim(HELD_UNIT)) {
+                System.out.println("Unable to claim a free unit");
+                failures++;
+            }
+            String holderClaim = new String(Files.readAllBytes(jobDir.resolve(HELD_UNIT + ".claim.0")), StandardCharsets.UTF_8);
+
+            List<Process> processes = new ArrayList<>();
+            for (int worker = 0; worker < workers; worker++) {
+                processes.add(new ProcessBuilder(
+                        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                        "-cp", System.getProperty("java.class.path"),
+                        WorkClaimsCheck.class.getName(), WORKER, jobDir.toString(), Integer.toString(units))
+                        .inheritIO()
+                        .start());
+            }
+            for (Process process : processes) {
+                if (process.waitFor() != 0) {
+                    System.out.println("Worker failed with exit code " + process.exitValue());
+                    failures++;
+                }
+            }
+
+            //The live claim must be untouched by the workers
+            String heldClaim = new String(Files.readAllBytes(jobDir.resolve(HELD_UNIT + ".claim.0")), StandardCharsets.UTF_8);
+            if (!heldClaim.equals(holderClaim) || Files.exists(jobDir.resolve(HELD_UNIT + ".log"))) {
+                System.out.println("The live claim of unit '" + HELD_UNIT + "' was taken over");
+                failures++;
+            }
+            holder.complete(HELD_UNIT);
+        }
+
+        for (int unit = 0; unit < units; unit++) {
+            String name = unitName(unit);
+            Path log = jobDir.resolve(name + ".log");
+            int completions = Files.exists(log) ? Files.readAllLines(log).size() : 0;
+            if (completions != 1 || !Files.exists(jobDir.resolve(name + ".done"))) {
+                System.out.println("Unit '" + name + "' was completed " + completions + " times");
+                failures++;
+            }
+        }
+        try (Stream<Path> paths = Files.list(jobDir)) {
+            long claims = paths.filter(p -> p.getFileName().toString().contains(".claim")).count();
+            if (claims != 0) {
+                System.out.println(claims + " claims were left in the job folder");
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Claim and complete units until every unit is done, logging each unit
+     * completed. The held unit is only tried, never completed
+     *
+     * @param jobDir Job folder shared by the workers
+     * @param units Quantity of units of work
+     * @throws Exception
+     */
+    private static void work(Path jobDir, int units) throws Exception {
+        Random random = new Random();
+        String workerName = Long.toString(ProcessHandle.current().pid());
+        try (WorkClaims claims = new WorkClaims(jobDir)) {
+            boolean waiting = true;
+            while (waiting) {
+                waiting = false;
+                boolean claimed = false;
+                if (claims.claim(HELD_UNIT)) {
+                    Files.write(jobDir.resolve(HELD_UNIT + ".log"), workerName.getBytes(StandardCharsets.UTF_8));
+                }
+                for (int unit = 0; unit < units; unit++) {
+                    String name = unitName(unit);
+                    if (claims.claim(name)) {
+                        Files.write(jobDir.resolve(name + ".log"), (workerName + "\n").getBytes(StandardCharsets.UTF_8),
+                                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                        Thread.sleep(random.nextInt(20));
+                        claims.complete(name);
+                        claimed = true;
+                    } else if (!claims.isDone(name)) {
+                        waiting = true;
+                    }
+                }
+                if (waiting && !claimed) {
+                    Thread.sleep(WORKER_POLL_MILLIS);
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @param unit Index of the unit
+     * @return Name of the unit
+     */
+    private static String unitName(int unit) {
+        return "unit-" + unit;
+    }
+}